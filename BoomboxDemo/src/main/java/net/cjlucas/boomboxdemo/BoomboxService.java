@@ -16,6 +16,7 @@ public class BoomboxService extends Service
     private static final String TAG = "BoomboxService";
 
     private Boombox mBoombox;
+    private boolean mPopulating;
     private IBinder mBinder = new LocalBinder();
 
 
@@ -24,11 +25,29 @@ public class BoomboxService extends Service
         public Boombox getBoombox() {
             return mBoombox;
         }
+
+        /**
+         * Providers are added asynchronously, so the playlist may still look
+         * empty after they were requested.
+         *
+         * @return true only for the first caller for the current Boombox
+         */
+        public boolean startPopulating() {
+            synchronized (BoomboxService.this) {
+                if (mPopulating) return false;
+
+                mPopulating = true;
+                return true;
+            }
+        }
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log.d(TAG, "onStartCommand");
+        synchronized (this) {
+            mPopulating = false;
+        }
         mBoombox = new Boombox();
         mBoombox.registerInfoListener(this);
         mBoombox.start();
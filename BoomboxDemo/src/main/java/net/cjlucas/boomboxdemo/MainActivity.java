@@ -21,6 +21,7 @@ import android.widget.TextView;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Timer;
@@ -58,7 +59,8 @@ public class MainActivity extends Activity
             mBoomboxServiceBinder = (BoomboxService.LocalBinder)iBinder;
             getBoombox().registerInfoListener(MainActivity.this);
 
-            if (getBoombox().getPlaylist().size() == 0) {
+            // the playlist stays empty until a pending population is applied
+            if (mBoomboxServiceBinder.startPopulating()) {
                 populateProviders();
             }
 
@@ -156,26 +158,38 @@ public class MainActivity extends Activity
     }
 
     private void populateProviders() {
-        try {
-            BufferedReader in = new BufferedReader(new InputStreamReader(getResources().openRawResource(R.raw.sources)));
-            String line = null;
-
-            while (true) {
-                line = in.readLine();
-                if (line == null) {
-                    break;
+        final Boombox boombox = getBoombox();
+
+        // reading the source list is I/O, keep it off the main thread
+        new Thread(new Runnable() {
+            public void run() {
+                List<AudioDataProvider> providers = new ArrayList<AudioDataProvider>();
+
+                try {
+                    BufferedReader in = new BufferedReader(new InputStreamReader(getResources().openRawResource(R.raw.sources)));
+                    String line = null;
+
+                    while (true) {
+                        line = in.readLine();
+                        if (line == null) {
+                            break;
+                        }
+
+                        URL url = new URL(line);
+                        String fileName = url.toString().substring(
+                                url.toString().lastIndexOf("/") + 1);
+                        System.out.println(fileName);
+                        providers.add(new HttpAudioDataProvider(url, fileName));
+                    }
+
+                } catch (Exception e) {
+                    e.printStackTrace();
                 }
 
-                URL url = new URL(line);
-                String fileName = url.toString().substring(
-                        url.toString().lastIndexOf("/") + 1);
-                System.out.println(fileName);
-                getBoombox().addProvider(new HttpAudioDataProvider(url, fileName));
+                boombox.addProviders(providers);
+                updateUi();
             }
-
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        }).start();
     }
 
     public Boombox getBoombox() {
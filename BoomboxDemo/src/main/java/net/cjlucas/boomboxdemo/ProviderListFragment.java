@@ -2,23 +2,23 @@ package net.cjlucas.boomboxdemo;
 
 import android.app.Activity;
 import android.app.ListFragment;
-import android.content.Context;
 import android.provider.MediaStore;
 import android.view.View;
 import android.widget.TextView;
 import android.view.ViewGroup;
 import android.os.Bundle;
 import android.view.LayoutInflater;
-import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
 import android.widget.*;
 
 import net.cjlucas.boombox.Boombox;
+import net.cjlucas.boombox.PlaylistListener;
+import net.cjlucas.boombox.PlaylistSnapshot;
 import net.cjlucas.boombox.provider.AudioDataProvider;
 
-import java.util.List;
 import java.util.Locale;
 
-public class ProviderListFragment extends ListFragment
+public class ProviderListFragment extends ListFragment implements PlaylistListener
 {
     private Boombox mBoombox;
 
@@ -27,9 +27,37 @@ public class ProviderListFragment extends ListFragment
 		void onProviderSelected(int index);
 	}
 
-    private class PlaylistAdapter extends ArrayAdapter<AudioDataProvider> {
-        public PlaylistAdapter(Context context, int resourceId, List<AudioDataProvider> playlist) {
-            super(context, resourceId, playlist);
+    private class PlaylistAdapter extends BaseAdapter {
+        private PlaylistSnapshot mSnapshot;
+
+        public PlaylistAdapter(PlaylistSnapshot snapshot) {
+            mSnapshot = snapshot;
+        }
+
+        /**
+         * Show a newer snapshot. Snapshots share their unchanged parts, so
+         * this doesn't copy the playlist.
+         */
+        public void setSnapshot(PlaylistSnapshot snapshot) {
+            if (snapshot.getVersion() == mSnapshot.getVersion()) return;
+
+            mSnapshot = snapshot;
+            notifyDataSetChanged();
+        }
+
+        @Override
+        public int getCount() {
+            return mSnapshot.size();
+        }
+
+        @Override
+        public AudioDataProvider getItem(int position) {
+            return mSnapshot.get(position);
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return position;
         }
 
         @Override
@@ -49,7 +77,7 @@ public class ProviderListFragment extends ListFragment
         }
     }
 
-	private ArrayAdapter<AudioDataProvider> adapter;
+	private PlaylistAdapter adapter;
 
 //	@Override
 //	public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstance)
@@ -72,18 +100,119 @@ public class ProviderListFragment extends ListFragment
 	}
 
     public void setBoombox(Boombox boombox) {
+        if (mBoombox != null) {
+            mBoombox.unregisterPlaylistListener(this);
+        }
         mBoombox = boombox;
 
-        this.adapter = new PlaylistAdapter(getActivity(), android.R.layout.simple_list_item_1, boombox.getPlaylist());
+        this.adapter = new PlaylistAdapter(boombox.getPlaylistSnapshot());
         setListAdapter(this.adapter);
+        boombox.registerPlaylistListener(this);
 
         System.out.println( "omghere: " + this.adapter.getCount() );
     }
 
+    @Override
+    public void onDestroy() {
+        if (mBoombox != null) {
+            mBoombox.unregisterPlaylistListener(this);
+        }
+
+        super.onDestroy();
+    }
+
+    /**
+     * A change to the playlist, applied on the UI thread. A ListView can't
+     * animate ranges, so the latest snapshot is swapped in, and the range is
+     * used to keep the rows the user is looking at in place.
+     */
+    private abstract class PlaylistChange implements Runnable {
+        /**
+         * @return the position the row at the given position moved to
+         */
+        abstract int mapPosition(int position);
+
+        @Override
+        public void run() {
+            if (mBoombox == null || adapter == null || getView() == null) return;
+
+            ListView list = getListView();
+            View firstView = list.getChildAt(0);
+            int first = list.getFirstVisiblePosition();
+
+            adapter.setSnapshot(mBoombox.getPlaylistSnapshot());
+
+            if (firstView != null) {
+                list.setSelectionFromTop(mapPosition(first), firstView.getTop());
+            }
+        }
+    }
+
+    /**
+     * Called on the Boombox thread, the list is updated on the UI thread in
+     * the order the changes were made.
+     */
+    private void applyChange(PlaylistChange change) {
+        Activity activity = getActivity();
+        if (activity == null) return;
+
+        activity.runOnUiThread(change);
+    }
+
+    // PlaylistListener Methods
+
+    @Override
+    public void onProvidersInserted(Boombox boombox, long version, final int position, final int count) {
+        applyChange(new PlaylistChange() {
+            @Override
+            int mapPosition(int p) {
+                return p >= position ? p + count : p;
+            }
+        });
+    }
+
+    @Override
+    public void onProvidersRemoved(Boombox boombox, long version, final int position, final int count) {
+        applyChange(new PlaylistChange() {
+            @Override
+            int mapPosition(int p) {
+                if (p >= position + count) return p - count;
+                // removed rows are replaced by the ones that followed them
+                return Math.min(p, position);
+            }
+        });
+    }
+
+    @Override
+    public void onProviderMoved(Boombox boombox, long version, final int from, final int to) {
+        applyChange(new PlaylistChange() {
+            @Override
+            int mapPosition(int p) {
+                if (p == from) return to;
+                if (from < p && p <= to) return p - 1;
+                if (to <= p && p < from) return p + 1;
+                return p;
+            }
+        });
+    }
+
+    @Override
+    public void onPlaylistReordered(Boombox boombox, long version) {
+        // every row may have moved, start over at the top
+        applyChange(new PlaylistChange() {
+            @Override
+            int mapPosition(int p) {
+                return 0;
+            }
+        });
+    }
+
     @Override
     public void onListItemClick(ListView l, View v, int position, long id) {
         System.out.println(position + " clicked");
-        mBoombox.play(position);
+        // the position is only valid in the shown snapshot, the playlist may
+        // have changed since
+        mBoombox.play(adapter.getItem(position));
         if (getActivity() instanceof ProviderListActivity) getActivity().finish();
     }
 
@@ -0,0 +1,214 @@
+package net.cjlucas.boombox;
+
+/**
+ * Shares the link between the provider reads of the playing track and
+ * background reads, like the queued next track and prefetches.
+ *
+ * Foreground reads are never delayed. While the foreground is reading,
+ * background reads are paced by a token bucket whose rate is whatever the
+ * foreground leaves of the estimated link capacity. Once the foreground
+ * goes idle, background reads run unthrottled. The capacity is estimated
+ * from the bytes read per second of wall-clock time by both classes
+ * together, over windows in which both of them were reading.
+ *
+ * Upstream connections are counted against a limit that only background
+ * work, like prefetching, waits for. The connections of the tracks being
+ * played, including the queued one, are counted but always granted, so the
+ * total can exceed the limit. Short requests that don't stream data, like
+ * the HEAD requests of probes and preconnects, aren't counted.
+ */
+class BandwidthScheduler {
+    public static final int DEFAULT_MAX_CONNECTIONS = 4;
+
+    // background streams always get at least this many bytes per second
+    private static final double MIN_BACKGROUND_RATE = 16 * 1024;
+    // the share of the capacity kept free on top of the foreground rate
+    private static final double FOREGROUND_HEADROOM = 1.25;
+    private static final long FOREGROUND_IDLE_TIME = 1000 * 1000 * 1000L;
+    private static final long RATE_WINDOW = 1000 * 1000 * 1000L;
+    private static final double CAPACITY_WEIGHT = 0.2;
+    // background reads shorter apart than this count as a continuous stream
+    private static final long BACKGROUND_IDLE_TIME = 200 * 1000 * 1000L;
+
+    enum Priority {
+        FOREGROUND, BACKGROUND
+    }
+
+    private final TokenBucket mBackgroundBucket;
+    private int mMaxConnections;
+    private int mConnections;
+
+    // bytes per second
+    private double mCapacity;
+    private double mForegroundRate;
+    private long mForegroundWindowStart;
+    private long mForegroundWindowBytes;
+    private long mForegroundLastRead;
+    private long mBackgroundLastRead;
+    private long mCapacityWindowStart;
+    private long mCapacityWindowBytes;
+    // whether the background kept reading during the whole capacity window
+    private boolean mCapacityWindowShared;
+
+    private static class TokenBucket {
+        private double mTokens;
+        private long mLastRefill;
+
+        /**
+         * Block until the bucket is out of debt.
+         */
+        void await(BandwidthScheduler scheduler) throws InterruptedException {
+            while (true) {
+                long waitMillis;
+
+                synchronized (this) {
+                    double rate = scheduler.getBackgroundRate();
+                    long now = System.nanoTime();
+
+                    if (rate == 0) {
+                        mTokens = 0;
+                        mLastRefill = now;
+                        return;
+                    }
+
+                    // allow bursts of up to a second worth of data
+                    mTokens = Math.min(rate, mTokens + (now - mLastRefill) * rate / 1e9);
+                    mLastRefill = now;
+                    if (mTokens >= 0) return;
+
+                    waitMillis = Math.max(1, (long) (-mTokens * 1000 / rate));
+                }
+
+                Thread.sleep(Math.min(waitMillis, 100));
+            }
+        }
+
+        synchronized void consume(int bytes) {
+            mTokens -= bytes;
+        }
+    }
+
+    public BandwidthScheduler() {
+        mBackgroundBucket = new TokenBucket();
+        mMaxConnections = DEFAULT_MAX_CONNECTIONS;
+    }
+
+    public synchronized int getMaxConnections() {
+        return mMaxConnections;
+    }
+
+    public synchronized void setMaxConnections(int maxConnections) {
+        mMaxConnections = maxConnections;
+        notifyAll();
+    }
+
+    /**
+     * Count connections that are needed for playback, or that are already
+     * open, which are granted even if the limit has been reached.
+     */
+    public synchronized void openConnections(int count) {
+        mConnections += count;
+    }
+
+    /**
+     * Wait until fewer connections than the limit are open, and count one
+     * for background work.
+     */
+    public synchronized void acquireConnection() throws InterruptedException {
+        while (mConnections >= mMaxConnections) {
+            wait();
+        }
+        mConnections++;
+    }
+
+    public synchronized void closeConnections(int count) {
+        mConnections -= count;
+        notifyAll();
+    }
+
+    /**
+     * Call before reading from a provider. Background reads may be delayed.
+     */
+    public void beforeRead(Priority priority) throws InterruptedException {
+        if (priority == Priority.BACKGROUND) {
+            mBackgroundBucket.await(this);
+        }
+    }
+
+    /**
+     * Call after reading from a provider.
+     *
+     * @param bytes the number of bytes read
+     */
+    public void afterRead(Priority priority, int bytes) {
+        if (bytes <= 0) return;
+
+        if (priority == Priority.BACKGROUND) {
+            mBackgroundBucket.consume(bytes);
+        }
+
+        synchronized (this) {
+            long now = System.nanoTime();
+
+            if (priority == Priority.BACKGROUND) {
+                mBackgroundLastRead = now;
+            }
+            updateCapacity(now, bytes);
+
+            if (priority == Priority.FOREGROUND) {
+                if (now - mForegroundLastRead > FOREGROUND_IDLE_TIME) {
+                    mForegroundWindowStart = now;
+                    mForegroundWindowBytes = 0;
+                }
+
+                mForegroundLastRead = now;
+                mForegroundWindowBytes += bytes;
+
+                long elapsed = now - mForegroundWindowStart;
+                if (elapsed >= RATE_WINDOW) {
+                    mForegroundRate = mForegroundWindowBytes * 1e9 / elapsed;
+                    mForegroundWindowStart = now;
+                    mForegroundWindowBytes = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sample the combined rate of both classes once per window. Only windows
+     * in which both kept reading tell how much the link can carry, reads of
+     * a single class are limited by that stream alone.
+     */
+    private void updateCapacity(long now, int bytes) {
+        boolean shared = now - mForegroundLastRead <= FOREGROUND_IDLE_TIME
+                && now - mBackgroundLastRead <= BACKGROUND_IDLE_TIME;
+
+        if (mCapacityWindowBytes == 0) {
+            mCapacityWindowStart = now;
+            mCapacityWindowShared = shared;
+        }
+        mCapacityWindowBytes += bytes;
+        mCapacityWindowShared &= shared;
+
+        long elapsed = now - mCapacityWindowStart;
+        if (elapsed < RATE_WINDOW) return;
+
+        if (mCapacityWindowShared) {
+            double rate = mCapacityWindowBytes * 1e9 / elapsed;
+            mCapacity = mCapacity == 0 ? rate : mCapacity + CAPACITY_WEIGHT * (rate - mCapacity);
+        }
+        mCapacityWindowBytes = 0;
+    }
+
+    /**
+     * @return the rate background reads are paced at in bytes per second,
+     * or 0 if they aren't paced
+     */
+    synchronized double getBackgroundRate() {
+        if (mCapacity == 0 || System.nanoTime() - mForegroundLastRead > FOREGROUND_IDLE_TIME) {
+            return 0;
+        }
+
+        return Math.max(MIN_BACKGROUND_RATE, mCapacity - mForegroundRate * FOREGROUND_HEADROOM);
+    }
+}
@@ -10,15 +10,22 @@ import android.util.Log;
 
 import java.io.IOException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+import net.cjlucas.boombox.cache.HeadCache;
 import net.cjlucas.boombox.provider.AudioDataProvider;
 
 public class Boombox extends Thread
@@ -30,22 +37,41 @@ public class Boombox extends Thread
         MediaPlayer.OnSeekCompleteListener,
         Handler.Callback {
     private static final String TAG = "Boombox";
-
-    private final List<AudioDataProvider> mProviders;
-    private final List<AudioDataProvider> mPlaylist;
+    private static final long DEFAULT_CONNECT_TIMEOUT = 10 * 1000;
+    private static final int HEAD_SIZE = 256 * 1024;
+    private static final long DEFAULT_HEAD_CACHE_SIZE = 8 * 1024 * 1024;
+    private static final long PREFETCH_INTERVAL = 1000;
+    // servers close idle keep-alive connections after 5 to 75 seconds
+    private static final long PRECONNECT_LEAD_TIME = 5 * 1000;
+
+    private final Playlist mPlaylist;
     private final List<MediaPlayer> mPlayers;
     private final List<ProviderProcessor> mProcessors;
     private final Map<MediaPlayer, AudioDataProvider> mPlayerProviderMap;
     private final Map<MediaPlayer, PlayerState> mPlayerStateMap;
+    private final ProxyServer mProxyServer;
+    private final BufferPool mBufferPool;
+    private final HeadCache<AudioDataProvider> mHeadCache;
+    private final PrefetchScheduler mPrefetchScheduler;
+    private final BandwidthScheduler mBandwidthScheduler;
 
-    private int mPlaylistCursor;
+    private volatile int mPlaylistCursor;
 
     private BoomboxInfoListenerList mInfoListeners;
+    private final List<PlaylistListener> mPlaylistListeners;
 
     private boolean mShuffleMode;
     private ContinuousMode mContinuousMode;
+    private volatile long mConnectTimeout;
+    // the provider last warmed up, only touched on the Boombox thread
+    private AudioDataProvider mPreconnectedProvider;
 
-    private Handler mHandler;
+    // checked from other threads to tell whether the Boombox thread is running
+    private volatile Handler mHandler;
+    private final CountDownLatch mHandlerReady = new CountDownLatch(1);
+    // edits are applied inline until the thread has started, see reqEditPlaylist()
+    private final Object mStartLock = new Object();
+    private boolean mStarted;
 
     public enum ContinuousMode {
         NONE, SINGLE, PLAYLIST
@@ -69,7 +95,16 @@ public class Boombox extends Thread
         RELEASE_PROCESSOR(1 << 1),
         PLAY_PROVIDER(1 << 2),
         SHUFFLE_PLAYLIST(1 << 3),
-        RESET_PLAYLIST(1 << 4);
+        RESET_PLAYLIST(1 << 4),
+        PROVIDER_FAILED(1 << 5),
+        PREFETCH(1 << 6),
+        UPDATE_QUEUE(1 << 7),
+        INSERT_PROVIDERS(1 << 8),
+        REMOVE_PROVIDERS(1 << 9),
+        MOVE_PROVIDER(1 << 10),
+        PLAY_POSITION(1 << 11),
+        PLAY_ITEM(1 << 12),
+        PLAY_ID(1 << 13);
 
         public static MessageType forValue(int value) {
             for (MessageType type : MessageType.values()) {
@@ -96,16 +131,22 @@ public class Boombox extends Thread
     }
 
     public Boombox() {
-        mProviders = Collections.synchronizedList(new ArrayList<AudioDataProvider>());
-        mPlaylist = Collections.synchronizedList(new ArrayList<AudioDataProvider>());
+        mPlaylist = new Playlist();
         mPlayers = Collections.synchronizedList(new ArrayList<MediaPlayer>());
         mProcessors = Collections.synchronizedList(new ArrayList<ProviderProcessor>());
         mPlayerProviderMap = new ConcurrentHashMap<>();
         mPlayerStateMap = new ConcurrentHashMap<>();
+        mProxyServer = new ProxyServer();
+        mBufferPool = new BufferPool(ProviderProcessor.BUFFER_SIZE, 4);
+        mHeadCache = new HeadCache<>(HEAD_SIZE, DEFAULT_HEAD_CACHE_SIZE);
+        mBandwidthScheduler = new BandwidthScheduler();
+        mPrefetchScheduler = new PrefetchScheduler(mHeadCache, mBandwidthScheduler);
         mPlaylistCursor = 0;
         mShuffleMode = false;
         mContinuousMode = ContinuousMode.NONE;
+        mConnectTimeout = DEFAULT_CONNECT_TIMEOUT;
         mInfoListeners = new BoomboxInfoListenerList();
+        mPlaylistListeners = new CopyOnWriteArrayList<>();
     }
 
     /**
@@ -127,10 +168,67 @@ public class Boombox extends Thread
         mInfoListeners.remove(infoListener);
     }
 
+    /**
+     * Register for playlist changes.
+     * @param playlistListener
+     */
+    public void registerPlaylistListener(PlaylistListener playlistListener) {
+        if (playlistListener == null) {
+            throw new IllegalArgumentException("playlistListener cannot be null");
+        }
+        mPlaylistListeners.add(playlistListener);
+    }
+
+    /**
+     * Unregister from playlist changes.
+     * @param playlistListener
+     */
+    public void unregisterPlaylistListener(PlaylistListener playlistListener) {
+        mPlaylistListeners.remove(playlistListener);
+    }
+
+    /**
+     * Start the Boombox thread. Returns once it accepts messages, so every
+     * call made after this is handled on the Boombox thread.
+     */
+    @Override
+    public void start() {
+        synchronized (mStartLock) {
+            super.start();
+
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    mHandlerReady.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+
+            mStarted = true;
+        }
+    }
+
+    private boolean isStarted() {
+        synchronized (mStartLock) {
+            return mStarted;
+        }
+    }
+
     @Override
     public void run() {
         Looper.prepare();
         mHandler = new Handler(this);
+        mHandlerReady.countDown();
+
+        if (mProxyServer.startServer()) {
+            mProxyServer.start();
+            logi("Started proxy server on port %d", mProxyServer.getPort());
+        }
 
         Looper.loop();
     }
@@ -164,6 +262,12 @@ public class Boombox extends Thread
     private void releaseProcessor(ProviderProcessor pp) {
         pp.halt();
 
+        // a processor tearing itself down can't wait for itself to finish
+        if (pp == Thread.currentThread()) {
+            mProcessors.remove(pp);
+            return;
+        }
+
         try {
             logi("joining");
             pp.join(500);
@@ -176,6 +280,16 @@ public class Boombox extends Thread
         }
     }
 
+    private ProviderProcessor getProcessor(AudioDataProvider provider) {
+        synchronized (mProcessors) {
+            for (ProviderProcessor pp : mProcessors) {
+                if (pp.getProvider() == provider) return pp;
+            }
+        }
+
+        return null;
+    }
+
     /**
      * Stop and release a MediaPlayer object.
      * @param player
@@ -197,13 +311,20 @@ public class Boombox extends Thread
      */
     public void reset() {
         resetPlayers();
+
+        int size = mPlaylist.size();
         mPlaylist.clear();
-        mProviders.clear();
         mPlaylistCursor = 0;
+
+        if (size > 0) {
+            notifyProvidersRemoved(0, size);
+        }
     }
 
     public void release() {
         reset();
+        mPrefetchScheduler.shutdown();
+        mProxyServer.stopServer();
     }
 
     private void setPlayerState(MediaPlayer player, PlayerState state) {
@@ -222,13 +343,13 @@ public class Boombox extends Thread
      */
     private int getFollowingPlaylistIndex(int index) {
         int newIndex = index + 1;
+        int size = mPlaylist.size();
 
-        if (mContinuousMode != ContinuousMode.PLAYLIST
-                && newIndex >= mPlaylist.size()) {
+        if (size == 0 || (mContinuousMode != ContinuousMode.PLAYLIST && newIndex >= size)) {
             return -1;
         }
 
-        return newIndex % mPlaylist.size();
+        return newIndex % size;
     }
 
     private int getNextPlaylistCursor() {
@@ -261,49 +382,236 @@ public class Boombox extends Thread
      * @param provider
      */
     public void addProvider(AudioDataProvider provider) {
-        mProviders.add(provider);
-        mPlaylist.add(provider);
+        addProviders(Collections.singletonList(provider));
+    }
+
+    /**
+     * Add several providers at once, like a batch from a LibraryScanner.
+     * Playlist edits are applied in order on the Boombox thread, each one
+     * at once.
+     * @param providers
+     */
+    public void addProviders(Collection<? extends AudioDataProvider> providers) {
+        reqInsertProviders(-1, providers);
+    }
+
+    /**
+     * Insert providers into the playlist.
+     * @param position the position in the playlist the first provider is
+     *                 inserted at
+     * @param providers
+     */
+    public void insertProviders(int position, Collection<? extends AudioDataProvider> providers) {
+        if (position < 0) {
+            throw new IndexOutOfBoundsException("position: " + position);
+        }
+        reqInsertProviders(position, providers);
+    }
+
+    /**
+     * Remove the providers at the positions [from, to) of the playlist. If
+     * the current provider is removed, playback continues with the provider
+     * that takes its place.
+     * @param from
+     * @param to
+     */
+    public void removeProviders(int from, int to) {
+        if (from < 0 || from > to) {
+            throw new IndexOutOfBoundsException("range: [" + from + ", " + to + ")");
+        }
+        reqEditPlaylist(MessageType.REMOVE_PROVIDERS, from, to, null);
+    }
+
+    /**
+     * Move the provider at one position of the playlist to another.
+     * @param from
+     * @param to
+     */
+    public void moveProvider(int from, int to) {
+        if (from < 0 || to < 0) {
+            throw new IndexOutOfBoundsException("move: " + from + " -> " + to);
+        }
+        reqEditPlaylist(MessageType.MOVE_PROVIDER, from, to, null);
+    }
+
+    /**
+     * Whether an edit of the positions [from, to] may change the current or
+     * the next provider.
+     */
+    private boolean touchesQueue(int from, int to) {
+        int next = getNextPlaylistCursor();
+
+        return (from <= mPlaylistCursor + 1 && to >= mPlaylistCursor)
+                || (next != -1 && from <= next && to >= next);
+    }
+
+    /**
+     * @param position the position to insert at, or -1 to append
+     */
+    private void insertIntoPlaylist(int position, List<AudioDataProvider> providers) {
+        if (position > mPlaylist.size()) {
+            loge("can't insert at %d, playlist size is %d", position, mPlaylist.size());
+            return;
+        }
+
+        boolean wasEmpty = mPlaylist.isEmpty();
+        if (position == -1) {
+            position = mPlaylist.size();
+        }
+        boolean touchesQueue = !wasEmpty && touchesQueue(position, position);
+
+        if (position == mPlaylist.size()) {
+            // appending keeps a shuffled order lazy, which may shuffle the
+            // new providers in between the ones not played yet
+            if (mPlaylist.addAll(providers) == position) {
+                notifyProvidersInserted(position, providers.size());
+            } else {
+                notifyPlaylistReordered();
+            }
+        } else {
+            mPlaylist.insert(position, providers);
+            notifyProvidersInserted(position, providers.size());
+        }
+
+        if (!wasEmpty && position <= mPlaylistCursor) {
+            mPlaylistCursor += providers.size();
+        }
+        if (touchesQueue) {
+            updateQueue();
+        }
+    }
+
+    private void removeFromPlaylist(int from, int to) {
+        if (to > mPlaylist.size()) {
+            loge("can't remove [%d, %d), playlist size is %d", from, to, mPlaylist.size());
+            return;
+        }
+        if (from == to) return;
+
+        boolean removesCurrent = from <= mPlaylistCursor && mPlaylistCursor < to;
+        boolean touchesQueue = touchesQueue(from, to - 1);
+
+        mPlaylist.remove(from, to);
+        notifyProvidersRemoved(from, to - from);
+
+        if (removesCurrent) {
+            // continue with the provider that took the current one's place
+            mPlaylistCursor = Math.max(0, Math.min(from, mPlaylist.size() - 1));
+
+            if (getCurrentPlayer() != null) {
+                if (mPlaylist.isEmpty()) {
+                    resetPlayers();
+                } else {
+                    reqPlayProvider(getCurrentProvider());
+                }
+            }
+            return;
+        }
+
+        if (mPlaylistCursor >= to) {
+            mPlaylistCursor -= to - from;
+        }
+        if (touchesQueue) {
+            updateQueue();
+        }
+    }
+
+    private void moveInPlaylist(int from, int to) {
+        if (from >= mPlaylist.size() || to >= mPlaylist.size()) {
+            loge("can't move %d to %d, playlist size is %d", from, to, mPlaylist.size());
+            return;
+        }
+        if (from == to) return;
+
+        boolean touchesQueue = touchesQueue(from, from) || touchesQueue(to, to);
+
+        mPlaylist.move(from, to);
+        notifyProviderMoved(from, to);
+
+        if (from == mPlaylistCursor) {
+            mPlaylistCursor = to;
+        } else if (from < mPlaylistCursor && to >= mPlaylistCursor) {
+            mPlaylistCursor--;
+        } else if (from > mPlaylistCursor && to <= mPlaylistCursor) {
+            mPlaylistCursor++;
+        }
+
+        if (touchesQueue) {
+            updateQueue();
+        }
     }
 
+    /**
+     * The playlist accessors, this one, getNextProvider, getPreviousProvider,
+     * hasNext, hasPrevious, getProviders, getPlaylist and getPlaylistSnapshot,
+     * read the playlist on the calling thread. They see the edits applied so
+     * far, not the ones still queued for the Boombox thread.
+     */
     public AudioDataProvider getCurrentProvider() {
-        return mPlaylist.get(mPlaylistCursor);
+        return getPlaylistItem(mPlaylistCursor);
     }
 
     public AudioDataProvider getNextProvider() {
-        int nextCursor = getNextPlaylistCursor();
-
-        return nextCursor == -1 ? null : mPlaylist.get(nextCursor);
+        return getPlaylistItem(getNextPlaylistCursor());
     }
 
     public AudioDataProvider getPreviousProvider() {
-        int prevCursor = getPreviousPlaylistCursor();
+        return getPlaylistItem(getPreviousPlaylistCursor());
+    }
 
-        return prevCursor == -1 ? null : mPlaylist.get(prevCursor);
+    /**
+     * @return the provider at the given position, or null if there is none,
+     * like while the playlist is empty
+     */
+    private AudioDataProvider getPlaylistItem(int position) {
+        synchronized (mPlaylist) {
+            if (position < 0 || position >= mPlaylist.size()) return null;
+
+            return mPlaylist.get(position);
+        }
     }
 
+    /**
+     * @return a copy of the providers in the order they were added
+     */
     public List<AudioDataProvider> getProviders() {
-        return new ArrayList<AudioDataProvider>(mProviders);
+        return mPlaylist.getProviders();
     }
 
+    /**
+     * @return a copy of the providers in play order, see
+     * {@link #getPlaylistSnapshot()} to avoid the copy
+     */
     public List<AudioDataProvider> getPlaylist() {
-        return new ArrayList<AudioDataProvider>(mPlaylist);
+        return mPlaylist.toList();
+    }
+
+    /**
+     * Get an immutable snapshot of the playlist in play order. Snapshots
+     * share their unchanged parts, and the same snapshot is returned until
+     * the playlist changes.
+     */
+    public PlaylistSnapshot getPlaylistSnapshot() {
+        return mPlaylist.getSnapshot();
     }
 
     private AudioDataProvider getProviderAfter(AudioDataProvider provider) {
-        int nextIndex = getFollowingPlaylistIndex(mPlaylist.indexOf(provider));
+        int index = mPlaylist.indexOf(provider);
+        if (index == -1) return null;
+
+        int nextIndex = getFollowingPlaylistIndex(index);
         return nextIndex == -1 ? null : mPlaylist.get(nextIndex);
     }
 
     private void queueProvider(AudioDataProvider provider) {
+        // the provider can't be prefetched and served at the same time
+        mPrefetchScheduler.awaitProvider(provider);
+
         ProviderProcessor pp = new ProviderProcessor(provider);
 
         // if data mProvider could not be prepared, skip to the next track
         if (!pp.prepare()) {
-            if (hasNext()) {
-                playNext();
-            } else {
-                notifyPlaylistCompletion();
-            }
+            skipFailedProvider();
             return;
         }
         pp.start();
@@ -334,6 +642,109 @@ public class Boombox extends Thread
         mPlayerProviderMap.put(mp, provider);
     }
 
+    private void skipFailedProvider() {
+        if (hasNext()) {
+            playNext();
+        } else {
+            notifyPlaylistCompletion();
+        }
+    }
+
+    /**
+     * Set how long a player may take to connect to a provider's stream
+     * before the provider is considered failed and skipped.
+     * @param connectTimeoutMillis
+     */
+    public void setConnectTimeout(long connectTimeoutMillis) {
+        mConnectTimeout = connectTimeoutMillis;
+    }
+
+    public long getConnectTimeout() {
+        return mConnectTimeout;
+    }
+
+    /**
+     * Set how much memory may be used to keep the first bytes of tracks
+     * around, so they start playing before their provider is prepared.
+     * @param maxBytes
+     */
+    public void setHeadCacheSize(long maxBytes) {
+        mHeadCache.setMaxSize(maxBytes);
+    }
+
+    /**
+     * Set how many upcoming tracks have their first bytes fetched ahead of
+     * time, see {@link #setHeadCacheSize(long)}.
+     * @param depth
+     */
+    public void setPrefetchDepth(int depth) {
+        mPrefetchScheduler.setDepth(depth);
+    }
+
+    /**
+     * Set the maximum number of bytes fetched ahead for upcoming tracks.
+     * @param maxBytes
+     */
+    public void setPrefetchBudget(long maxBytes) {
+        mPrefetchScheduler.setBudget(maxBytes);
+    }
+
+    /**
+     * Limit the number of upstream connections background work like
+     * prefetching opens. The tracks being played, including the queued one,
+     * always get their connections, but they count towards the limit.
+     * @param maxConnections
+     */
+    public void setMaxUpstreamConnections(int maxConnections) {
+        mBandwidthScheduler.setMaxConnections(maxConnections);
+    }
+
+    private boolean isCurrentProvider(AudioDataProvider provider) {
+        MediaPlayer player = getCurrentPlayer();
+        return player != null && mPlayerProviderMap.get(player) == provider;
+    }
+
+    /**
+     * Get the provider throughput measured while streaming, which decides
+     * how early upcoming tracks are queued.
+     * @return the throughput in bytes per second, or 0 if unknown
+     */
+    public long getMeasuredThroughput() {
+        return mPrefetchScheduler.getThroughput();
+    }
+
+    /**
+     * Get the read size the given provider's data is currently pumped with,
+     * which adapts to the provider's throughput.
+     * @param provider
+     * @return the read size in bytes, or 0 if the provider isn't being served
+     */
+    public int getReadSize(AudioDataProvider provider) {
+        ProviderProcessor pp = getProcessor(provider);
+        return pp == null ? 0 : pp.getReadSize();
+    }
+
+    /**
+     * Get the providers following the tail player's provider that aren't
+     * being served yet.
+     */
+    private List<AudioDataProvider> getUpcomingProviders(int count) {
+        List<AudioDataProvider> upcoming = new ArrayList<>();
+        if (mPlayers.isEmpty()) return upcoming;
+
+        AudioDataProvider provider = mPlayerProviderMap.get(mPlayers.get(mPlayers.size() - 1));
+        while (upcoming.size() < count) {
+            provider = getProviderAfter(provider);
+            if (provider == null || upcoming.contains(provider)) break;
+
+            if (getProcessor(provider) == null) {
+                upcoming.add(provider);
+            }
+        }
+
+        return upcoming;
+    }
+
     // Playback Controls
 
     private MediaPlayer getCurrentPlayer() {
@@ -349,42 +760,56 @@ public class Boombox extends Thread
     public void play() {
         MediaPlayer mp = getCurrentPlayer();
 
-        // lazy load the media player
+        // lazy load the media player, the current provider is looked up once
+        // pending playlist edits are applied
         if (mp == null) {
-            reqPlayProvider(getCurrentProvider());
+            reqPlayProvider(null);
 
             // start is called by the onPrepared listener
         } else {
             mp.start();
             setPlayerState(mp, PlayerState.STARTED);
+
+            // the prefetch loop stops while paused
+            reqPrefetch(0);
         }
     }
 
+    /**
+     * Play the provider at the given position. Like the other play methods,
+     * the position is resolved on the Boombox thread once pending playlist
+     * edits are applied.
+     * @param position
+     */
     public void play(int position) {
-        mPlaylistCursor = position;
-        reqPlayProvider(mPlaylist.get(position));
+        Message msg = obtainMessage(MessageType.PLAY_POSITION, null);
+        msg.arg1 = position;
+        mHandler.sendMessage(msg);
     }
 
     public void play(AudioDataProvider provider) {
-        play(mPlaylist.indexOf(provider));
+        Message msg = obtainMessage(MessageType.PLAY_ITEM, provider);
+        mHandler.sendMessage(msg);
     }
 
+    /**
+     * Play the provider with the given id. If there is none once pending
+     * edits are applied, an error is logged and playback doesn't change.
+     * @param id
+     */
     public void play(Object id) {
-        synchronized (mPlaylist) {
-            int index = 0;
-
-            for (AudioDataProvider provider : mPlaylist) {
-                if (provider.getId().equals(id)) break;
-                index++;
-            }
+        Message msg = obtainMessage(MessageType.PLAY_ID, id);
+        mHandler.sendMessage(msg);
+    }
 
-            if (index < mPlaylist.size()) {
-                mPlaylistCursor = index;
-                reqPlayProvider(mPlaylist.get(index));
-            } else {
-                throw new RuntimeException("No provider found with the given id");
-            }
+    private void playPosition(int position) {
+        if (position < 0 || position >= mPlaylist.size()) {
+            loge("no provider at position %d, playlist size is %d", position, mPlaylist.size());
+            return;
         }
+
+        mPlaylistCursor = position;
+        reqPlayProvider(mPlaylist.get(position));
     }
 
     public void pause() {
@@ -395,6 +820,9 @@ public class Boombox extends Thread
                 mp.pause();
                 setPlayerState(mp, PlayerState.PAUSED);
             }
+
+            // nothing to prefetch for until playback resumes
+            mHandler.removeMessages(MessageType.PREFETCH.value);
         }
     }
 
@@ -408,6 +836,9 @@ public class Boombox extends Thread
         }
     }
 
+    /**
+     * May be stale, see {@link #getCurrentProvider()}.
+     */
     public boolean hasNext() {
         return getNextPlaylistCursor() != -1;
     }
@@ -430,60 +861,72 @@ public class Boombox extends Thread
         }
     }
 
-    private void shufflePlaylist() {
-        AudioDataProvider currentProvider = null;
+    private void shufflePlaylist(long seed) {
+        MediaPlayer currentPlayer = getCurrentPlayer();
+        AudioDataProvider currentProvider = currentPlayer == null
+                ? null : mPlayerProviderMap.get(currentPlayer);
 
-        // release queued mPlayers
-        if (mPlayers.size() > 0) {
-            mPlayers.get(0).setNextMediaPlayer(null);
-            for (int i = 1; i < mPlayers.size(); i++) {
-                releasePlayer(mPlayers.get(i));
-            }
+        mPlaylist.shuffle(seed, currentProvider);
+        mPlaylistCursor = 0;
+        notifyPlaylistReordered();
 
-            currentProvider = mPlayerProviderMap.get(mPlayers.get(0));
-        }
+        updateQueue();
+    }
 
+    private void resetPlaylist() {
         synchronized (mPlaylist) {
-            List<AudioDataProvider> providers = new ArrayList<AudioDataProvider>(mProviders);
-
-            mPlaylist.clear();
-
-            // put current mProvider at the top of the shuffled mPlaylist
-            if (currentProvider != null) {
-                mPlaylist.add(currentProvider);
-                providers.remove(currentProvider);
-            }
-
-            Random random = new Random();
-            for (int i = 0; i < providers.size(); i++) {
-                int index = random.nextInt(providers.size());
+            AudioDataProvider currentProvider = getCurrentProvider();
+            mPlaylist.unshuffle();
 
-                AudioDataProvider p = providers.get(index);
-                mPlaylist.add(p);
-                providers.remove(p);
-            }
+            mPlaylistCursor = currentProvider == null ? 0 : mPlaylist.indexOf(currentProvider);
         }
+        notifyPlaylistReordered();
 
-        mPlaylistCursor = 0;
+        updateQueue();
     }
 
-    private void resetPlaylist() {
-        synchronized (mPlaylist) {
-            AudioDataProvider currentProvider = getCurrentProvider();
-            mPlaylist.clear();
-            logi("mProvider size: %d", mProviders.size());
+    /**
+     * Bring the queued players in line with the play order after it changed.
+     * A queued player whose provider is still next is kept. Otherwise it's
+     * released, and its processor leaves the data it downloaded in the
+     * HeadCache, so the track starts from memory when it comes up later.
+     */
+    private void updateQueue() {
+        if (mPlayers.size() < 2) return;
 
-            for (AudioDataProvider provider : mProviders) {
-                mPlaylist.add(provider);
-            }
+        MediaPlayer currentPlayer = mPlayers.get(0);
+        AudioDataProvider nextProvider = getProviderAfter(mPlayerProviderMap.get(currentPlayer));
+        if (mPlayerProviderMap.get(mPlayers.get(1)) == nextProvider) return;
 
-            logi("mPlaylist size %d", mPlaylist.size());
+        logi("next provider changed, releasing the queued player");
+        currentPlayer.setNextMediaPlayer(null);
 
-            mPlaylistCursor = mPlaylist.indexOf(currentProvider);
+        while (mPlayers.size() > 1) {
+            MediaPlayer player = mPlayers.get(1);
+            ProviderProcessor pp = getProcessor(mPlayerProviderMap.get(player));
+
+            releasePlayer(player);
+            if (pp != null) {
+                releaseProcessor(pp);
+            }
         }
+
+        // queue the new next provider in time
+        reqPrefetch(0);
     }
 
     public void setShuffleMode(boolean shuffle) {
+        setShuffleMode(shuffle, new Random().nextLong());
+    }
+
+    /**
+     * Enable or disable shuffle mode. The shuffled order is generated lazily,
+     * so this is cheap even for very large playlists.
+     * @param shuffle
+     * @param seed the seed the shuffled order is generated from, the same
+     *             seed gives the same order for the same providers
+     */
+    public void setShuffleMode(boolean shuffle, long seed) {
         boolean oldMode = isShuffleModeEnabled();
 
         // Don't do anything if mode is the same
@@ -492,7 +935,7 @@ public class Boombox extends Thread
         mShuffleMode = shuffle;
 
         if (mShuffleMode) {
-            reqShufflePlaylist();
+            reqShufflePlaylist(seed);
         } else {
             reqResetPlaylist();
         }
@@ -515,6 +958,11 @@ public class Boombox extends Thread
         if (mContinuousMode == ContinuousMode.SINGLE) {
             setLooping(true);
         }
+
+        // whether the playlist wraps around decides what's next on the last track
+        if (isStarted()) {
+            reqUpdateQueue();
+        }
     }
 
     public ContinuousMode getContinuousMode() {
@@ -536,20 +984,21 @@ public class Boombox extends Thread
 
     public int getDuration() {
         MediaPlayer mp = getCurrentPlayer();
-        // Fall back to AudioDataProvider.getDuration() if
-        // we can't get the duration from MediaPlayer
-        int providerDuration = (int) getCurrentProvider().getDuration();
-
-        if (mp == null) {
-            return providerDuration;
-        }
 
-        synchronized (mp) {
-            PlayerState state = mPlayerStateMap.get(mp);
+        if (mp != null) {
+            synchronized (mp) {
+                PlayerState state = mPlayerStateMap.get(mp);
 
-            return (!state.isPrepared() || mp.getDuration() == -1)
-                    ? providerDuration : mp.getDuration();
+                if (state.isPrepared() && mp.getDuration() != -1) {
+                    return mp.getDuration();
+                }
+            }
         }
+
+        // Fall back to AudioDataProvider.getDuration() if
+        // we can't get the duration from MediaPlayer
+        AudioDataProvider provider = getCurrentProvider();
+        return provider == null ? 0 : (int) provider.getDuration();
     }
 
     /**
@@ -595,12 +1044,22 @@ public class Boombox extends Thread
     public void onCompletion(MediaPlayer player) {
         logi("onCompletion player: %s", player);
 
-        notifyPlaybackCompletion(player, mPlayerProviderMap.get(player));
+        AudioDataProvider completedProvider = mPlayerProviderMap.get(player);
+        notifyPlaybackCompletion(player, completedProvider);
         setPlayerState(player, PlayerState.STOPPED);
         releasePlayer(player); // we want this synchronous so next code is valid
 
+        // processors stay alive after EOF to serve reconnects, so stop it here
+        ProviderProcessor pp = getProcessor(completedProvider);
+        if (pp != null) {
+            reqReleaseProcessor(pp);
+        }
+
         MediaPlayer currentPlayer = getCurrentPlayer();
         setPlayerState(currentPlayer, PlayerState.STARTED);
+        if (currentPlayer != null) {
+            reqPrefetch(0);
+        }
 
         // for safety, if there wasn't a queued player but there is a next provider, queue it now.
         if (currentPlayer == null && hasNext()) {
@@ -642,6 +1101,7 @@ public class Boombox extends Thread
             player.start();
             setPlayerState(player, PlayerState.STARTED);
             notifyPlaybackStart(mPlayerProviderMap.get(player));
+            reqPrefetch(0);
         } else {
             mPlayers.get(index - 1).setNextMediaPlayer(player);
         }
@@ -695,8 +1155,8 @@ public class Boombox extends Thread
         mHandler.sendMessage(msg);
     }
 
-    private void reqShufflePlaylist() {
-        Message msg = obtainMessage(MessageType.SHUFFLE_PLAYLIST, null);
+    private void reqShufflePlaylist(long seed) {
+        Message msg = obtainMessage(MessageType.SHUFFLE_PLAYLIST, seed);
         mHandler.sendMessage(msg);
     }
 
@@ -705,6 +1165,52 @@ public class Boombox extends Thread
         mHandler.sendMessage(msg);
     }
 
+    private void reqInsertProviders(int position, Collection<? extends AudioDataProvider> providers) {
+        // copied, so the caller may reuse the collection
+        reqEditPlaylist(MessageType.INSERT_PROVIDERS, position, 0,
+                new ArrayList<AudioDataProvider>(providers));
+    }
+
+    /**
+     * Send a playlist edit to the Boombox thread, or apply it right away if
+     * the thread hasn't been started yet, since nothing is playing then.
+     * Inline edits hold the start lock, so they can't overlap with each
+     * other or with the thread starting.
+     */
+    private void reqEditPlaylist(MessageType type, int arg1, int arg2, Object obj) {
+        synchronized (mStartLock) {
+            if (!mStarted) {
+                Message msg = new Message();
+                msg.what = type.value;
+                msg.arg1 = arg1;
+                msg.arg2 = arg2;
+                msg.obj = obj;
+                handleMessage(msg);
+                return;
+            }
+        }
+
+        Message msg = mHandler.obtainMessage(type.value, arg1, arg2, obj);
+        mHandler.sendMessage(msg);
+    }
+
+    private void reqUpdateQueue() {
+        Message msg = obtainMessage(MessageType.UPDATE_QUEUE, null);
+        mHandler.sendMessage(msg);
+    }
+
+    private void reqPrefetch(long delayMillis) {
+        if (hasMessages(MessageType.PREFETCH)) return;
+
+        Message msg = obtainMessage(MessageType.PREFETCH, null);
+        mHandler.sendMessageDelayed(msg, delayMillis);
+    }
+
+    private void reqProviderFailed(AudioDataProvider provider) {
+        Message msg = obtainMessage(MessageType.PROVIDER_FAILED, provider);
+        mHandler.sendMessage(msg);
+    }
+
     // Message handlers
 
     @Override
@@ -725,6 +1231,33 @@ public class Boombox extends Thread
             case RESET_PLAYLIST:
                 handleResetPlaylist(message);
                 break;
+            case PROVIDER_FAILED:
+                handleProviderFailed(message);
+                break;
+            case PREFETCH:
+                handlePrefetch(message);
+                break;
+            case UPDATE_QUEUE:
+                handleUpdateQueue(message);
+                break;
+            case INSERT_PROVIDERS:
+                handleInsertProviders(message);
+                break;
+            case REMOVE_PROVIDERS:
+                handleRemoveProviders(message);
+                break;
+            case MOVE_PROVIDER:
+                handleMoveProvider(message);
+                break;
+            case PLAY_POSITION:
+                handlePlayPosition(message);
+                break;
+            case PLAY_ITEM:
+                handlePlayItem(message);
+                break;
+            case PLAY_ID:
+                handlePlayId(message);
+                break;
             default:
                 throw new RuntimeException("Unhandled message: " + message);
         }
@@ -746,17 +1279,150 @@ public class Boombox extends Thread
             return;
         }
 
-        queueProvider((AudioDataProvider) msg.obj);
+        AudioDataProvider provider = (AudioDataProvider) msg.obj;
+        if (provider == null) {
+            if (mPlaylist.isEmpty()) return;
+            provider = getCurrentProvider();
+        }
+
+        queueProvider(provider);
+    }
+
+    private void handlePlayPosition(Message msg) {
+        playPosition(msg.arg1);
+    }
+
+    private void handlePlayItem(Message msg) {
+        playPosition(mPlaylist.indexOf((AudioDataProvider) msg.obj));
+    }
+
+    private void handlePlayId(Message msg) {
+        int position = mPlaylist.indexOfId(msg.obj);
+        if (position == -1) {
+            loge("no provider found with the id %s", msg.obj);
+            return;
+        }
+
+        playPosition(position);
+    }
+
+    private void handleInsertProviders(Message msg) {
+        @SuppressWarnings("unchecked")
+        List<AudioDataProvider> providers = (List<AudioDataProvider>) msg.obj;
+        insertIntoPlaylist(msg.arg1, providers);
+    }
+
+    private void handleRemoveProviders(Message msg) {
+        removeFromPlaylist(msg.arg1, msg.arg2);
+    }
+
+    private void handleMoveProvider(Message msg) {
+        moveInPlaylist(msg.arg1, msg.arg2);
     }
 
     private void handleShufflePlaylist(Message msg) {
-        shufflePlaylist();
+        shufflePlaylist((Long) msg.obj);
     }
 
     private void handleResetPlaylist(Message msg) {
         resetPlaylist();
     }
 
+    private void handleUpdateQueue(Message msg) {
+        updateQueue();
+    }
+
+    /**
+     * Runs every PREFETCH_INTERVAL while a track is playing, and stops while
+     * it's paused. Queues the next player once the current track is about to
+     * end, instead of waiting for the current track to be fully buffered,
+     * and warms up its connection PRECONNECT_LEAD_TIME before that. Also
+     * fetches the heads of the tracks after that.
+     */
+    private void handlePrefetch(Message msg) {
+        MediaPlayer player = getCurrentPlayer();
+        if (player == null || mPlayerStateMap.get(player) != PlayerState.STARTED) return;
+
+        AudioDataProvider nextProvider = getProviderAfter(mPlayerProviderMap.get(player));
+        if (mPlayers.size() == 1 && nextProvider != null) {
+            long remaining = player.getDuration() - player.getCurrentPosition();
+            long leadTime = mPrefetchScheduler.getLeadTime(nextProvider);
+
+            if (remaining <= leadTime) {
+                logi("queueing the next provider, %d ms left", remaining);
+                queueProvider(nextProvider);
+            } else if (remaining <= leadTime + PRECONNECT_LEAD_TIME
+                    && nextProvider != mPreconnectedProvider) {
+                // warm up the connection shortly before it's used, so the
+                // server doesn't close it as idle in the meantime
+                mPreconnectedProvider = nextProvider;
+                nextProvider.preconnect();
+            }
+        }
+
+        mPrefetchScheduler.prefetch(getUpcomingProviders(mPrefetchScheduler.getDepth()));
+        reqPrefetch(PREFETCH_INTERVAL);
+    }
+
+    private void handleProviderFailed(Message msg) {
+        AudioDataProvider provider = (AudioDataProvider) msg.obj;
+
+        MediaPlayer failedPlayer = null;
+        synchronized (mPlayers) {
+            for (MediaPlayer player : mPlayers) {
+                if (mPlayerProviderMap.get(player) == provider) {
+                    failedPlayer = player;
+                    break;
+                }
+            }
+        }
+
+        // the provider's player has already been released
+        if (failedPlayer == null) return;
+
+        boolean wasCurrent = failedPlayer == getCurrentPlayer();
+        if (!wasCurrent) {
+            int index = mPlayers.indexOf(failedPlayer);
+            mPlayers.get(index - 1).setNextMediaPlayer(null);
+        }
+        releasePlayer(failedPlayer);
+
+        // a failed queued provider is retried once playback reaches it
+        if (wasCurrent) {
+            skipFailedProvider();
+        }
+    }
+
+    // PlaylistListener helpers
+
+    private void notifyProvidersInserted(int position, int count) {
+        long version = mPlaylist.getVersion();
+        for (PlaylistListener playlistListener : mPlaylistListeners) {
+            playlistListener.onProvidersInserted(this, version, position, count);
+        }
+    }
+
+    private void notifyProvidersRemoved(int position, int count) {
+        long version = mPlaylist.getVersion();
+        for (PlaylistListener playlistListener : mPlaylistListeners) {
+            playlistListener.onProvidersRemoved(this, version, position, count);
+        }
+    }
+
+    private void notifyProviderMoved(int from, int to) {
+        long version = mPlaylist.getVersion();
+        for (PlaylistListener playlistListener : mPlaylistListeners) {
+            playlistListener.onProviderMoved(this, version, from, to);
+        }
+    }
+
+    private void notifyPlaylistReordered() {
+        long version = mPlaylist.getVersion();
+        for (PlaylistListener playlistListener : mPlaylistListeners) {
+            playlistListener.onPlaylistReordered(this, version);
+        }
+    }
+
     // BoomboxInfoListener helpers
 
     private void notifyPlaybackStart(AudioDataProvider provider) {
@@ -840,24 +1506,60 @@ public class Boombox extends Thread
 
     private class ProviderProcessor extends Thread {
         private static final int BUFFER_SIZE = 64 * 1024;
+        private static final int MIN_READ_SIZE = 4 * 1024;
+        // reads are sized to take about this long at the observed rate
+        private static final long TARGET_READ_TIME = 50;
+        private static final long DRAIN_SAMPLE_INTERVAL = 250 * 1000 * 1000;
+        private static final double RATE_WEIGHT = 0.2;
 
         private AudioDataProvider mProvider;
-        private ProxyServer mProxyServer;
-        private boolean mShouldHalt;
+        private ProxyServer.Stream mStream;
+        private volatile boolean mShouldHalt;
+        private long mPosition;
+        private long mEndOffset;
+        private boolean mProducing;
+        private boolean mSuspended;
+        private ByteBuffer mBuffer;
+        private boolean mPrepared;
+        // the cached head served until the provider is prepared
+        private HeadCache.Head mHead;
+        private byte[] mHeadCapture;
+        private int mHeadCaptured;
+        private volatile int mReadSize;
+        private int mConnections;
+        // bytes per second
+        private double mProviderRate;
+        private double mDrainRate;
+        private long mDrainSampleTime;
+        private long mDrainSamplePosition;
 
         public ProviderProcessor(AudioDataProvider provider) {
             mProvider = provider;
-            mProxyServer = new ProxyServer();
+            mStream = mProxyServer.openStream();
             mShouldHalt = false;
+            mReadSize = MIN_READ_SIZE * 4;
+        }
+
+        /**
+         * @return the number of bytes currently requested from the provider per read
+         */
+        public int getReadSize() {
+            return mReadSize;
         }
 
         public boolean prepare() {
-            if (mProvider.prepare()) {
-                mProxyServer.startServer();
-                mProxyServer.setContentLength(mProvider.getLength());
-                mProxyServer.start();
+            // with a cached head, the provider is prepared once the head runs out
+            mHead = mHeadCache.get(mProvider);
+            if (mHead != null) {
+                logi("Serving cached head of provider @ " + getProxyURL());
+                return true;
+            }
 
-                logi("Starting proxy server @ " + getProxyURL());
+            if (mProvider.prepare()) {
+                mPrepared = true;
+                openConnection();
+                startHeadCapture();
+                logi("Serving provider @ " + getProxyURL());
                 return true;
             }
 
@@ -866,13 +1568,30 @@ public class Boombox extends Thread
         }
 
         private void tearDown() {
-            mProxyServer.stopServer();
+            mStream.close();
+
+            // keep what was downloaded so far, in case the track is played later
+            if (mHeadCapture != null && mHeadCaptured > 0) {
+                logi("ProviderProcessor: keeping %d bytes of the head", mHeadCaptured);
+                storeHead(false);
+            }
             mProvider.release();
+
+            if (mConnections > 0) {
+                mBandwidthScheduler.closeConnections(mConnections);
+                mConnections = 0;
+            }
+
+            if (mBuffer != null) {
+                mBufferPool.release(mBuffer);
+                mBuffer = null;
+            }
+
             releaseProcessor(this);
         }
 
         public URL getProxyURL() {
-            return mProxyServer.getURL();
+            return mStream.getURL();
         }
 
         public AudioDataProvider getProvider() {
@@ -881,46 +1600,411 @@ public class Boombox extends Thread
 
         public void halt() {
             mShouldHalt = true;
+            mStream.wakeUp();
         }
 
+        /*
+         * mPosition is the provider's position. Data read from the provider
+         * but not yet accepted by the stream is carried over in mBuffer, so
+         * mPosition is always the stream buffer's write position plus
+         * mBuffer.remaining().
+         */
         public void run() {
-            // TODO: add a timeout mechanism
-            // wait for audioProc to connect
-            while (!mProxyServer.hasConnection()) {
-                try {
-                    Thread.sleep(50);
-                } catch (InterruptedException e) {
-                    logi("got interrupted here yo");
+            mBuffer = mBufferPool.acquire();
+            mBuffer.limit(0);
+
+            try {
+                if (!mStream.awaitFirstRequest(mConnectTimeout) && !mShouldHalt) {
+                    loge("ProviderProcessor: no connection after %d ms", mConnectTimeout);
+                    reqProviderFailed(mProvider);
                     halt();
                 }
+            } catch (InterruptedException e) {
+                halt();
             }
 
             while (!mShouldHalt) {
-                if (!mProxyServer.isRunning()) halt();
-
-                byte[] buffer = new byte[BUFFER_SIZE];
-                int size = mProvider.provideData(buffer);
-                //              System.out.println("size received: " + size);
+                if (!mStream.isOpen()) {
+                    halt();
+                    break;
+                }
 
-                if (size > 0) {
-                    mProxyServer.sendData(shrinkBuffer(buffer, size));
-                } else if (size == AudioDataProvider.STATUS_EOF_REACHED) {
-                    logi("ProviderProcessor: EOF_REACHED");
+                ProxyRequest request = mStream.pollRequest();
+                if (request != null && !respond(request)) {
                     halt();
-                } else if (size == AudioDataProvider.STATUS_ERROR_OCCURED) {
-                    loge("ProviderProcessor: ERROR_OCCURED");
+                    break;
+                }
+
+                // the client stopped reading, don't hold on to the upstream
+                if (mStream.isUpstreamPaused() && mPrepared && !mSuspended
+                        && mProvider.suspend()) {
+                    logi("ProviderProcessor: suspended upstream");
+                    mSuspended = true;
+                }
+
+                // wait for audioProc to (re)connect or to start reading again
+                if (!mProducing || mStream.isUpstreamPaused()) {
+                    try {
+                        mStream.awaitSignal();
+                    } catch (InterruptedException e) {
+                        logi("got interrupted here yo");
+                        halt();
+                    }
+                    continue;
+                }
+
+                if (mSuspended && !resumeUpstream()) {
                     halt();
+                    break;
+                }
+
+                // if interrupted by a new request or a pause, the rest is carried over
+                if (mBuffer.hasRemaining() || fillBuffer()) {
+                    mStream.sendData(mBuffer);
                 }
             }
 
             tearDown();
         }
 
-        private byte[] shrinkBuffer(byte[] buffer, int size) {
-            byte[] newBuffer = new byte[size];
-            System.arraycopy(buffer, 0, newBuffer, 0, size);
+        private boolean resumeUpstream() {
+            mSuspended = false;
+
+            if (mProvider.resume(mPosition)) {
+                logi("ProviderProcessor: resumed upstream");
+                return true;
+            }
+
+            loge("ProviderProcessor: couldn't resume upstream");
+            mStream.abort();
+            return false;
+        }
+
+        /**
+         * Read the next block of provider data into mBuffer.
+         *
+         * @return true if mBuffer has data to send
+         */
+        private boolean fillBuffer() {
+            if (mEndOffset != -1 && mPosition >= mEndOffset) {
+                mProducing = false;
+                mStream.finish();
+                return false;
+            }
+
+            if (!mPrepared && mPosition >= mHead.getData().length && !mHead.isComplete()
+                    && !prepareDeferred(mPosition)) {
+                mStream.abort();
+                reqProviderFailed(mProvider);
+                halt();
+                return false;
+            }
+
+            mBuffer.clear();
+            long limit = mReadSize;
+            if (mEndOffset != -1) {
+                limit = Math.min(limit, mEndOffset - mPosition);
+            }
+            mBuffer.limit((int) limit);
+
+            int size;
+            if (mPrepared) {
+                // the playing track has priority over the queued one
+                BandwidthScheduler.Priority priority = isCurrentProvider(mProvider)
+                        ? BandwidthScheduler.Priority.FOREGROUND
+                        : BandwidthScheduler.Priority.BACKGROUND;
+
+                try {
+                    mBandwidthScheduler.beforeRead(priority);
+                } catch (InterruptedException e) {
+                    mBuffer.limit(0);
+                    halt();
+                    return false;
+                }
+
+                long start = System.nanoTime();
+                size = mProvider.provideData(mBuffer);
+                long elapsed = System.nanoTime() - start;
+
+                mBandwidthScheduler.afterRead(priority, size);
+                mPrefetchScheduler.recordThroughput(size, elapsed);
+                adaptReadSize(size, elapsed);
+            } else {
+                size = readHead();
+            }
+            mBuffer.flip();
+            //              System.out.println("size received: " + size);
+
+            if (size > 0) {
+                captureHead(mPosition);
+                mPosition += size;
+                return true;
+            } else if (size == AudioDataProvider.STATUS_EOF_REACHED) {
+                logi("ProviderProcessor: EOF_REACHED");
+
+                if (mHeadCapture != null && mHeadCaptured == mPosition) {
+                    storeHead(true);
+                }
+
+                // stay around so later requests can be served from retained data
+                mProducing = false;
+                mStream.finish();
+            } else if (size == AudioDataProvider.STATUS_ERROR_OCCURED) {
+                loge("ProviderProcessor: ERROR_OCCURED");
+                mStream.abort();
+                halt();
+            }
+
+            return false;
+        }
+
+        /**
+         * Position the provider for the given request and send the response headers.
+         *
+         * @return false if the provider couldn't be positioned
+         */
+        private boolean respond(ProxyRequest request) {
+            long length = mPrepared ? mProvider.getLength() : mHead.getLength();
+            boolean seekable = mPrepared ? mProvider.isSeekable() : mHead.isSeekable();
+            ProxyRequest.ByteRange range = request.getRange(length);
+            FileChannel channel = mPrepared ? mProvider.getFileChannel() : null;
+
+            mProducing = false;
+
+            if (range != null && !range.isSatisfiable()) {
+                mStream.sendResponse(request, 416, null, length, seekable);
+                return true;
+            }
+
+            if (request.isHead()) {
+                mStream.sendResponse(request, 200, null, length, seekable);
+                return true;
+            }
+
+            if (channel != null && length > 0) {
+                // let the proxy send the file directly, nothing to pump
+                if (mStream.sendResponse(request, range == null ? 200 : 206, range, length, true)) {
+                    long start = range == null ? 0 : range.start;
+                    long count = range == null ? length : range.getLength();
+                    mStream.sendFile(channel, start, count);
+                }
+                return true;
+            }
+
+            if (range != null && !seekTo(range.start)) {
+                range = null;
+            }
+
+            if (range == null && !seekTo(0)) {
+                return false;
+            }
+
+            int status = range == null ? 200 : 206;
+            if (!mStream.sendResponse(request, status, range, length, seekable)) {
+                // superseded by a newer request, which is handled next iteration
+                return true;
+            }
+
+            if (range != null) {
+                mEndOffset = range.end + 1;
+            } else {
+                // -1 means stream until EOF
+                mEndOffset = length > 0 ? length : -1;
+            }
+
+            mProducing = true;
+            return true;
+        }
+
+        /**
+         * Position the stream so the response starts at the given offset,
+         * reusing data still retained in the stream's buffer when possible.
+         */
+        private boolean seekTo(long offset) {
+            ByteRingBuffer buffer = mStream.getBuffer();
+
+            // retained data, or continuing right where the provider left off
+            if (buffer.seekRead(offset)) return true;
+
+            if (!mPrepared) {
+                if (offset > mHead.getData().length && !prepareDeferred(offset)) {
+                    return false;
+                }
+
+                restartAt(offset);
+                return true;
+            }
+
+            if (mProvider.isSeekable() && mProvider.seek(offset)) {
+                restartAt(offset);
+                return true;
+            }
+
+            // non seekable providers can only be restarted from the beginning
+            if (offset == 0) {
+                mProvider.release();
+                if (mProvider.prepare()) {
+                    restartAt(0);
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        /**
+         * Size reads to the slower of the provider's rate and the rate the
+         * proxy drains the stream: slow streams get small reads so data
+         * reaches the player sooner, fast ones get large reads to cut down
+         * on calls per byte. Every read is handed to the proxy right away,
+         * so this sets the flush cadence as well.
+         */
+        private void adaptReadSize(int size, long nanos) {
+            if (size <= 0 || nanos <= 0) return;
+
+            mProviderRate = averageRate(mProviderRate, size * 1e9 / nanos);
+
+            long now = System.nanoTime();
+            long readPosition = mStream.getBuffer().getReadPosition();
+            if (mDrainSampleTime == 0) {
+                mDrainSampleTime = now;
+                mDrainSamplePosition = readPosition;
+            } else if (now - mDrainSampleTime >= DRAIN_SAMPLE_INTERVAL) {
+                // the read position moves backwards when the stream restarts
+                long drained = readPosition - mDrainSamplePosition;
+                if (drained >= 0) {
+                    mDrainRate = averageRate(mDrainRate, drained * 1e9 / (now - mDrainSampleTime));
+                }
+
+                mDrainSampleTime = now;
+                mDrainSamplePosition = readPosition;
+            }
+
+            double rate = mDrainRate > 0 ? Math.min(mProviderRate, mDrainRate) : mProviderRate;
+            long target = (long) (rate * TARGET_READ_TIME / 1000);
+
+            int readSize = MIN_READ_SIZE;
+            while (readSize < target && readSize < BUFFER_SIZE) {
+                readSize <<= 1;
+            }
+            mReadSize = readSize;
+        }
+
+        private double averageRate(double average, double sample) {
+            return average == 0 ? sample : average + RATE_WEIGHT * (sample - average);
+        }
+
+        /**
+         * Count the provider's upstream connections, local files don't need any.
+         */
+        private void openConnection() {
+            mConnections = mProvider.getConnectionCount();
+            mBandwidthScheduler.openConnections(mConnections);
+        }
+
+        private int readHead() {
+            byte[] data = mHead.getData();
+            if (mPosition >= data.length) {
+                return AudioDataProvider.STATUS_EOF_REACHED;
+            }
+
+            int count = (int) Math.min(mBuffer.remaining(), data.length - mPosition);
+            mBuffer.put(data, (int) mPosition, count);
+            return count;
+        }
+
+        /**
+         * Prepare a provider whose cached head has been served, and position
+         * it at the given offset.
+         *
+         * @return false if the provider couldn't be prepared, or no longer
+         * matches the cached head
+         */
+        private boolean prepareDeferred(long offset) {
+            logi("ProviderProcessor: preparing provider behind its cached head");
+
+            if (!mProvider.prepare()) {
+                loge("ProviderProcessor: couldn't prepare provider");
+                return false;
+            }
+
+            long headLength = mHead.getLength();
+            mPrepared = true;
+            mHead = null;
+            openConnection();
+
+            if (headLength > 0 && mProvider.getLength() != headLength) {
+                loge("ProviderProcessor: provider changed since its head was cached");
+                mHeadCache.remove(mProvider);
+                return false;
+            }
+
+            if (offset == 0 || (mProvider.isSeekable() && mProvider.seek(offset))) {
+                return true;
+            }
+
+            // otherwise skip ahead by discarding data
+            long skipped = 0;
+            while (skipped < offset) {
+                mBuffer.clear();
+                mBuffer.limit((int) Math.min(mBuffer.capacity(), offset - skipped));
+
+                int size = mProvider.provideData(mBuffer);
+                if (size <= 0) return false;
+                skipped += size;
+            }
+
+            mBuffer.limit(0);
+            return true;
+        }
+
+        /**
+         * Start recording the first bytes read from the provider, unless
+         * they're already cached or the provider serves a local file.
+         */
+        private void startHeadCapture() {
+            if (mProvider.getFileChannel() != null || mHeadCache.contains(mProvider)) return;
+
+            mHeadCapture = new byte[mHeadCache.getHeadSize()];
+            mHeadCaptured = 0;
+        }
+
+        /**
+         * Record the data in mBuffer if it continues the captured head.
+         *
+         * @param position the stream offset of the data
+         */
+        private void captureHead(long position) {
+            if (mHeadCapture == null || position != mHeadCaptured) return;
+
+            int count = Math.min(mBuffer.remaining(), mHeadCapture.length - mHeadCaptured);
+            System.arraycopy(mBuffer.array(), mBuffer.arrayOffset() + mBuffer.position(),
+                    mHeadCapture, mHeadCaptured, count);
+            mHeadCaptured += count;
+
+            if (mHeadCaptured == mHeadCapture.length) {
+                storeHead(false);
+            }
+        }
+
+        private void storeHead(boolean complete) {
+            byte[] data = mHeadCapture;
+            if (mHeadCaptured < data.length) {
+                data = Arrays.copyOf(data, mHeadCaptured);
+            }
+
+            mHeadCache.put(mProvider, new HeadCache.Head(data, mProvider.getLength(),
+                    mProvider.isSeekable(), complete));
+            mHeadCapture = null;
+        }
+
+        private void restartAt(long offset) {
+            mStream.getBuffer().reset(offset);
+            mBuffer.limit(0);
+            mPosition = offset;
 
-            return newBuffer;
+            // seeking reopened the upstream
+            mSuspended = false;
         }
     }
 }
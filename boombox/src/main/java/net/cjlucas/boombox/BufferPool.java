@@ -0,0 +1,52 @@
+package net.cjlucas.boombox;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A pool of equally sized heap ByteBuffers, so short lived consumers like
+ * ProviderProcessor can reuse buffers instead of allocating new ones.
+ */
+public class BufferPool {
+    private final int mBufferSize;
+    private final int mMaxPooled;
+    private final ArrayDeque<ByteBuffer> mBuffers;
+
+    /**
+     * @param bufferSize the capacity of every buffer handed out
+     * @param maxPooled the maximum number of idle buffers kept around
+     */
+    public BufferPool(int bufferSize, int maxPooled) {
+        mBufferSize = bufferSize;
+        mMaxPooled = maxPooled;
+        mBuffers = new ArrayDeque<>();
+    }
+
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * @return a cleared buffer, allocated only if the pool is empty
+     */
+    public synchronized ByteBuffer acquire() {
+        ByteBuffer buffer = mBuffers.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(mBufferSize);
+        }
+
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Return a buffer obtained from {@link #acquire()} to the pool.
+     */
+    public synchronized void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != mBufferSize) return;
+
+        if (mBuffers.size() < mMaxPooled) {
+            mBuffers.push(buffer);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package net.cjlucas.boombox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A fixed capacity, preallocated byte ring buffer with a single producer and
+ * a single consumer.
+ *
+ * Once the fill level reaches the high watermark, writers block until the
+ * consumer drains the buffer down to the low watermark. This keeps memory
+ * bounded while smoothing out jitter on both sides of the buffer.
+ *
+ * Positions are absolute stream offsets. Consumed data is retained until the
+ * producer overwrites it, so the consumer can rewind into recently consumed
+ * data with {@link #seekRead(long)}.
+ */
+public class ByteRingBuffer {
+    private final byte[] mData;
+    private final ByteBuffer mView;
+    private final int mHighWatermark;
+    private final int mLowWatermark;
+
+    private long mFloor;
+    private long mWritePos;
+    private long mReadPos;
+    private boolean mDraining;
+    private boolean mClosed;
+    private int mGeneration;
+
+    /**
+     * @param capacity the size of the buffer in bytes
+     * @param lowWatermark the fill level blocked writers wait for
+     * @param highWatermark the fill level at which writers block
+     */
+    public ByteRingBuffer(int capacity, int lowWatermark, int highWatermark) {
+        if (lowWatermark < 0 || lowWatermark > highWatermark || highWatermark > capacity) {
+            throw new IllegalArgumentException(
+                    "watermarks must satisfy 0 <= low <= high <= capacity");
+        }
+
+        mData = new byte[capacity];
+        mView = ByteBuffer.wrap(mData);
+        mHighWatermark = highWatermark;
+        mLowWatermark = lowWatermark;
+    }
+
+    public int getCapacity() {
+        return mData.length;
+    }
+
+    public int getHighWatermark() {
+        return mHighWatermark;
+    }
+
+    public int getLowWatermark() {
+        return mLowWatermark;
+    }
+
+    /**
+     * @return the number of buffered bytes that haven't been consumed
+     */
+    public synchronized int size() {
+        return (int) (mWritePos - mReadPos);
+    }
+
+    /**
+     * @return the fill level as a fraction of the capacity, from 0 to 1
+     */
+    public synchronized float getFillLevel() {
+        return (float) size() / mData.length;
+    }
+
+    public synchronized boolean isEmpty() {
+        return mWritePos == mReadPos;
+    }
+
+    /**
+     * @return the stream offset the next written byte will have
+     */
+    public synchronized long getWritePosition() {
+        return mWritePos;
+    }
+
+    /**
+     * @return the stream offset of the next byte to be consumed
+     */
+    public synchronized long getReadPosition() {
+        return mReadPos;
+    }
+
+    /**
+     * @return the lowest stream offset that is still held in the buffer
+     */
+    public synchronized long getRetainedPosition() {
+        return Math.max(mFloor, mWritePos - mData.length);
+    }
+
+    /**
+     * Move the consumer to the given stream offset, which must either be
+     * held in the buffer or be the next offset to be written.
+     *
+     * @return false if the offset isn't available
+     */
+    public synchronized boolean seekRead(long offset) {
+        if (offset < getRetainedPosition() || offset > mWritePos) return false;
+
+        mReadPos = offset;
+        notifyIfDrained();
+        return true;
+    }
+
+    /**
+     * Copy the remaining bytes of src into the buffer, blocking while the
+     * buffer is above its high watermark.
+     *
+     * @return false if the buffer was cleared or closed before all of the
+     * data could be written
+     */
+    public synchronized boolean write(ByteBuffer src) throws InterruptedException {
+        int generation = mGeneration;
+
+        while (src.hasRemaining()) {
+            while (!mClosed && generation == mGeneration
+                    && (mDraining || size() >= mHighWatermark)) {
+                mDraining = true;
+                wait();
+            }
+
+            if (mClosed || generation != mGeneration) return false;
+
+            int start = (int) (mWritePos % mData.length);
+            int count = Math.min(src.remaining(),
+                    Math.min(mData.length - size(), mData.length - start));
+            src.get(mData, start, count);
+
+            mWritePos += count;
+        }
+
+        return true;
+    }
+
+    /**
+     * Write as much buffered data as the channel accepts without blocking.
+     *
+     * @param max the maximum number of bytes to consume
+     * @return the number of bytes consumed
+     */
+    public synchronized int drainTo(WritableByteChannel channel, long max) throws IOException {
+        int total = 0;
+
+        while (!isEmpty() && total < max) {
+            int start = (int) (mReadPos % mData.length);
+            int count = (int) Math.min(Math.min(size(), mData.length - start), max - total);
+
+            mView.limit(start + count).position(start);
+            int written = channel.write(mView);
+
+            mReadPos += written;
+            total += written;
+
+            if (written < count) break;
+        }
+
+        notifyIfDrained();
+        return total;
+    }
+
+    private void notifyIfDrained() {
+        if (mDraining && size() <= mLowWatermark) {
+            mDraining = false;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Discard all buffered data and restart the buffer at the given stream
+     * offset. Writers blocked on the buffer return false.
+     */
+    public synchronized void reset(long offset) {
+        mFloor = offset;
+        mWritePos = offset;
+        mReadPos = offset;
+        mDraining = false;
+        interruptWriters();
+    }
+
+    /**
+     * Make writers that are currently blocked return false, keeping the
+     * buffered data.
+     */
+    public synchronized void interruptWriters() {
+        mGeneration++;
+        notifyAll();
+    }
+
+    public synchronized void close() {
+        mClosed = true;
+        interruptWriters();
+    }
+}
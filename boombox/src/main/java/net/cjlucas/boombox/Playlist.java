@@ -0,0 +1,437 @@
+package net.cjlucas.boombox;
+
+import net.cjlucas.boombox.provider.AudioDataProvider;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * The providers in the order they were added, and the order they are played
+ * in, with hash indexes from provider and from provider id to index, so
+ * lookups don't scan the list.
+ *
+ * Indexes refer to the order the providers were added in, positions to the
+ * play order. Unless the playlist is shuffled the two are the same. A
+ * shuffled play order is a lazily generated {@link Shuffle} over the
+ * indexes, so shuffling doesn't touch the providers themselves. Once a
+ * shuffled playlist is edited, its play order is kept as a list of its own.
+ *
+ * Appending is O(1), other edits reindex from the first affected index. A
+ * provider that appears more than once is indexed at its first index.
+ *
+ * Every change increases the version. Snapshots are built on demand and
+ * share the part before the first change with the previous snapshot.
+ */
+class Playlist {
+    private final IndexedList mItems;
+    private Shuffle mShuffle;
+    // the shuffled play order of an edited playlist
+    private IndexedList mOrder;
+    private Random mOrderRandom;
+
+    private long mVersion;
+    private PlaylistSnapshot mSnapshot;
+    // the first position changed since mSnapshot was built
+    private int mChangedFrom;
+
+    /**
+     * A list of providers with hash indexes from provider and from provider
+     * id to index.
+     */
+    private static class IndexedList {
+        private final ArrayList<AudioDataProvider> mItems;
+        private final Map<AudioDataProvider, Integer> mIndexes;
+        private final Map<Object, Integer> mIdIndexes;
+
+        IndexedList(Collection<? extends AudioDataProvider> providers) {
+            mItems = new ArrayList<>(providers);
+            mIndexes = new HashMap<>();
+            mIdIndexes = new HashMap<>();
+            reindex(0, Collections.<AudioDataProvider>emptyList());
+        }
+
+        int size() {
+            return mItems.size();
+        }
+
+        AudioDataProvider get(int index) {
+            return mItems.get(index);
+        }
+
+        Integer indexOf(AudioDataProvider provider) {
+            return mIndexes.get(provider);
+        }
+
+        Integer indexOfId(Object id) {
+            return mIdIndexes.get(id);
+        }
+
+        void addAll(int index, Collection<? extends AudioDataProvider> providers) {
+            if (index == mItems.size()) {
+                mItems.addAll(providers);
+                for (int i = index; i < mItems.size(); i++) {
+                    index(mItems.get(i), i);
+                }
+            } else {
+                mItems.addAll(index, providers);
+                reindex(index, Collections.<AudioDataProvider>emptyList());
+            }
+        }
+
+        /**
+         * Remove the providers in [from, to).
+         */
+        List<AudioDataProvider> remove(int from, int to) {
+            List<AudioDataProvider> range = mItems.subList(from, to);
+            List<AudioDataProvider> removed = new ArrayList<>(range);
+            range.clear();
+
+            reindex(from, removed);
+            return removed;
+        }
+
+        /**
+         * Remove one occurrence, the first, of each of the given providers.
+         * A provider listed twice loses two occurrences.
+         */
+        void removeEach(Collection<AudioDataProvider> providers) {
+            Map<AudioDataProvider, Integer> counts = new HashMap<>();
+            int from = mItems.size();
+            for (AudioDataProvider provider : providers) {
+                Integer index = mIndexes.get(provider);
+                if (index == null) continue;
+
+                Integer count = counts.get(provider);
+                counts.put(provider, count == null ? 1 : count + 1);
+                from = Math.min(from, index);
+            }
+            if (counts.isEmpty()) return;
+
+            List<AudioDataProvider> tail = mItems.subList(from, mItems.size());
+            List<AudioDataProvider> removed = new ArrayList<>(tail);
+            tail.clear();
+
+            for (AudioDataProvider provider : removed) {
+                Integer count = counts.get(provider);
+                if (count == null || count == 0) {
+                    mItems.add(provider);
+                } else {
+                    counts.put(provider, count - 1);
+                }
+            }
+
+            reindex(from, removed);
+        }
+
+        void move(int from, int to) {
+            AudioDataProvider provider = mItems.remove(from);
+            mItems.add(to, provider);
+
+            reindex(Math.min(from, to), Collections.singletonList(provider));
+        }
+
+        void clear() {
+            mItems.clear();
+            mIndexes.clear();
+            mIdIndexes.clear();
+        }
+
+        List<AudioDataProvider> toList() {
+            return new ArrayList<>(mItems);
+        }
+
+        private void index(AudioDataProvider provider, int index) {
+            if (!mIndexes.containsKey(provider)) {
+                mIndexes.put(provider, index);
+            }
+
+            Object id = provider.getId();
+            if (id != null && !mIdIndexes.containsKey(id)) {
+                mIdIndexes.put(id, index);
+            }
+        }
+
+        private void unindex(AudioDataProvider provider, int from) {
+            Integer index = mIndexes.get(provider);
+            if (index != null && index >= from) {
+                mIndexes.remove(provider);
+            }
+
+            Object id = provider.getId();
+            index = id == null ? null : mIdIndexes.get(id);
+            if (index != null && index >= from) {
+                mIdIndexes.remove(id);
+            }
+        }
+
+        /**
+         * Rebuild the index entries for all indexes from the given one.
+         *
+         * @param removed providers that were removed from those indexes
+         */
+        private void reindex(int from, Collection<AudioDataProvider> removed) {
+            for (AudioDataProvider provider : removed) {
+                unindex(provider, from);
+            }
+            for (int i = from; i < mItems.size(); i++) {
+                unindex(mItems.get(i), from);
+            }
+            for (int i = from; i < mItems.size(); i++) {
+                index(mItems.get(i), i);
+            }
+        }
+    }
+
+    public Playlist() {
+        mItems = new IndexedList(Collections.<AudioDataProvider>emptyList());
+        mSnapshot = PlaylistSnapshot.EMPTY;
+        mChangedFrom = Integer.MAX_VALUE;
+    }
+
+    public synchronized long getVersion() {
+        return mVersion;
+    }
+
+    private void markChanged(int from) {
+        mVersion++;
+        mChangedFrom = Math.min(mChangedFrom, from);
+    }
+
+    /**
+     * @return the providers in play order at the current version
+     */
+    public synchronized PlaylistSnapshot getSnapshot() {
+        if (mSnapshot.getVersion() == mVersion) return mSnapshot;
+
+        int size = size();
+        int chunkCount = (size + PlaylistSnapshot.CHUNK_SIZE - 1) / PlaylistSnapshot.CHUNK_SIZE;
+
+        // full chunks before the first change are shared, the rest is rebuilt
+        AudioDataProvider[][] oldChunks = mSnapshot.getChunks();
+        AudioDataProvider[][] chunks = Arrays.copyOf(oldChunks, chunkCount);
+        int shared = Math.min(Math.min(chunkCount, oldChunks.length),
+                mChangedFrom / PlaylistSnapshot.CHUNK_SIZE);
+
+        for (int c = shared; c < chunkCount; c++) {
+            int start = c * PlaylistSnapshot.CHUNK_SIZE;
+            AudioDataProvider[] chunk =
+                    new AudioDataProvider[Math.min(PlaylistSnapshot.CHUNK_SIZE, size - start)];
+
+            for (int i = 0; i < chunk.length; i++) {
+                chunk[i] = get(start + i);
+            }
+            chunks[c] = chunk;
+        }
+
+        mSnapshot = new PlaylistSnapshot(mVersion, size, chunks);
+        mChangedFrom = Integer.MAX_VALUE;
+        return mSnapshot;
+    }
+
+    public synchronized int size() {
+        return mItems.size();
+    }
+
+    public synchronized boolean isEmpty() {
+        return mItems.size() == 0;
+    }
+
+    /**
+     * @return the provider at the given position of the play order
+     */
+    public synchronized AudioDataProvider get(int position) {
+        if (mOrder != null) return mOrder.get(position);
+
+        return mItems.get(mShuffle == null ? position : mShuffle.get(position));
+    }
+
+    /**
+     * @return the position of the provider in the play order, or -1 if it
+     * isn't in the playlist
+     */
+    public synchronized int indexOf(AudioDataProvider provider) {
+        if (mOrder != null) return toPosition(mOrder.indexOf(provider));
+
+        return toPosition(mItems.indexOf(provider));
+    }
+
+    /**
+     * @return the position of a provider with the given id in the play
+     * order, or -1 if there is none
+     */
+    public synchronized int indexOfId(Object id) {
+        if (mOrder != null) return toPosition(mOrder.indexOfId(id));
+
+        return toPosition(mItems.indexOfId(id));
+    }
+
+    private int toPosition(Integer index) {
+        if (index == null) return -1;
+
+        return mShuffle == null ? index : mShuffle.positionOf(index);
+    }
+
+    public synchronized boolean isShuffled() {
+        return mShuffle != null || mOrder != null;
+    }
+
+    /**
+     * Shuffle the play order.
+     *
+     * @param seed the seed the order is generated from
+     * @param first the provider put at the first position, or null
+     */
+    public synchronized void shuffle(long seed, AudioDataProvider first) {
+        Integer index = mItems.indexOf(first);
+        mShuffle = index == null
+                ? new Shuffle(mItems.size(), seed) : new Shuffle(mItems.size(), seed, index);
+        mOrder = null;
+        markChanged(0);
+    }
+
+    /**
+     * Restore the play order to the order the providers were added in.
+     */
+    public synchronized void unshuffle() {
+        mShuffle = null;
+        mOrder = null;
+        markChanged(0);
+    }
+
+    /**
+     * Keep the shuffled play order as a list, so it can be edited.
+     */
+    private void materializeOrder() {
+        if (mShuffle == null) return;
+
+        mOrder = new IndexedList(toList());
+        mOrderRandom = new Random(mShuffle.getSeed());
+        mShuffle = null;
+    }
+
+    public synchronized int add(AudioDataProvider provider) {
+        return addAll(Collections.singletonList(provider));
+    }
+
+    /**
+     * Append providers. If the playlist is shuffled, they are shuffled into
+     * the part of the play order that hasn't been visited yet, or appended
+     * in random order once the play order has been edited.
+     *
+     * @return the first position whose provider changed, which is the old
+     * size unless providers were shuffled in between existing ones
+     */
+    public synchronized int addAll(Collection<? extends AudioDataProvider> providers) {
+        int changedFrom = mItems.size();
+        mItems.addAll(mItems.size(), providers);
+
+        if (mShuffle != null) {
+            changedFrom = Math.min(changedFrom, mShuffle.getDrawnCount());
+            mShuffle.grow(mItems.size());
+        } else if (mOrder != null) {
+            List<AudioDataProvider> shuffled = new ArrayList<>(providers);
+            Collections.shuffle(shuffled, mOrderRandom);
+            mOrder.addAll(mOrder.size(), shuffled);
+        }
+
+        markChanged(changedFrom);
+        return changedFrom;
+    }
+
+    /**
+     * Insert providers at the given position of the play order. In a
+     * shuffled playlist they are appended to the order the providers were
+     * added in.
+     */
+    public synchronized void insert(int position, Collection<? extends AudioDataProvider> providers) {
+        if (position < 0 || position > mItems.size()) {
+            throw new IndexOutOfBoundsException("position: " + position + ", size: " + mItems.size());
+        }
+
+        materializeOrder();
+        if (mOrder == null) {
+            mItems.addAll(position, providers);
+        } else {
+            mItems.addAll(mItems.size(), providers);
+            mOrder.addAll(position, providers);
+        }
+        markChanged(position);
+    }
+
+    /**
+     * Remove the providers at the positions [from, to) of the play order.
+     *
+     * @return the removed providers
+     */
+    public synchronized List<AudioDataProvider> remove(int from, int to) {
+        if (from < 0 || to > mItems.size() || from > to) {
+            throw new IndexOutOfBoundsException("range: [" + from + ", " + to + "), size: "
+                    + mItems.size());
+        }
+
+        materializeOrder();
+        markChanged(from);
+        if (mOrder == null) return mItems.remove(from, to);
+
+        List<AudioDataProvider> removed = mOrder.remove(from, to);
+        mItems.removeEach(removed);
+        return removed;
+    }
+
+    /**
+     * Move the provider at one position of the play order to another. In a
+     * shuffled playlist, the order the providers were added in is kept.
+     */
+    public synchronized void move(int from, int to) {
+        if (from < 0 || from >= mItems.size() || to < 0 || to >= mItems.size()) {
+            throw new IndexOutOfBoundsException("move: " + from + " -> " + to + ", size: "
+                    + mItems.size());
+        }
+
+        materializeOrder();
+        if (mOrder == null) {
+            mItems.move(from, to);
+        } else {
+            mOrder.move(from, to);
+        }
+        markChanged(Math.min(from, to));
+    }
+
+    public synchronized void clear() {
+        mItems.clear();
+
+        if (mShuffle != null) {
+            mShuffle = new Shuffle(0, mShuffle.getSeed());
+        } else if (mOrder != null) {
+            mOrder.clear();
+        }
+        markChanged(0);
+    }
+
+    /**
+     * @return a copy of the providers in the order they were added
+     */
+    public synchronized List<AudioDataProvider> getProviders() {
+        return mItems.toList();
+    }
+
+    /**
+     * @return a copy of the providers in play order
+     */
+    public synchronized List<AudioDataProvider> toList() {
+        if (mOrder != null) return mOrder.toList();
+        if (mShuffle == null) return mItems.toList();
+
+        List<AudioDataProvider> list = new ArrayList<>(mItems.size());
+        for (int i = 0; i < mItems.size(); i++) {
+            list.add(mItems.get(mShuffle.get(i)));
+        }
+        return list;
+    }
+}
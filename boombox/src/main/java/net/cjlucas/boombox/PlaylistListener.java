@@ -0,0 +1,23 @@
+package net.cjlucas.boombox;
+
+/**
+ * Receives the changes to the playlist, as ranges of positions in play
+ * order, so a list showing it can be updated without copying the playlist.
+ * Every change comes with the version of the playlist it results in, see
+ * {@link PlaylistSnapshot#getVersion()}.
+ *
+ * Callbacks are made on the Boombox thread, or on the calling thread for
+ * changes made before Boombox is started.
+ */
+public interface PlaylistListener {
+    void onProvidersInserted(Boombox boombox, long version, int position, int count);
+
+    void onProvidersRemoved(Boombox boombox, long version, int position, int count);
+
+    void onProviderMoved(Boombox boombox, long version, int from, int to);
+
+    /**
+     * Called when the play order changed as a whole, like after shuffling.
+     */
+    void onPlaylistReordered(Boombox boombox, long version);
+}
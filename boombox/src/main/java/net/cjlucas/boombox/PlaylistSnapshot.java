@@ -0,0 +1,57 @@
+package net.cjlucas.boombox;
+
+import net.cjlucas.boombox.provider.AudioDataProvider;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * An immutable view of the playlist, in play order, at one version.
+ *
+ * The providers are stored in fixed size chunks. A snapshot of a newer
+ * version shares the chunks that lie entirely before the first change
+ * with the snapshot it was built from, so appending to a large playlist
+ * doesn't copy it.
+ */
+public final class PlaylistSnapshot extends AbstractList<AudioDataProvider>
+        implements RandomAccess {
+    static final int CHUNK_SIZE = 64;
+
+    static final PlaylistSnapshot EMPTY =
+            new PlaylistSnapshot(0, 0, new AudioDataProvider[0][]);
+
+    private final long mVersion;
+    private final int mSize;
+    private final AudioDataProvider[][] mChunks;
+
+    PlaylistSnapshot(long version, int size, AudioDataProvider[][] chunks) {
+        mVersion = version;
+        mSize = size;
+        mChunks = chunks;
+    }
+
+    /**
+     * @return the version of the playlist, which increases with every change
+     */
+    public long getVersion() {
+        return mVersion;
+    }
+
+    AudioDataProvider[][] getChunks() {
+        return mChunks;
+    }
+
+    @Override
+    public AudioDataProvider get(int position) {
+        if (position < 0 || position >= mSize) {
+            throw new IndexOutOfBoundsException("position: " + position + ", size: " + mSize);
+        }
+
+        return mChunks[position / CHUNK_SIZE][position % CHUNK_SIZE];
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+}
@@ -0,0 +1,258 @@
+package net.cjlucas.boombox;
+
+import android.util.Log;
+
+import net.cjlucas.boombox.cache.HeadCache;
+import net.cjlucas.boombox.provider.AudioDataProvider;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Decides when upcoming tracks are fetched ahead of playback.
+ *
+ * The scheduler measures provider throughput, which determines how long
+ * before the end of the current track the next player has to be queued.
+ * It also fetches the heads of the next few tracks into the
+ * {@link HeadCache} on a background thread, within a byte budget, so those
+ * tracks start from memory.
+ */
+class PrefetchScheduler {
+    private static final String TAG = "PrefetchScheduler";
+
+    public static final int DEFAULT_DEPTH = 2;
+    public static final long DEFAULT_BUDGET = 1024 * 1024;
+
+    // the time a player takes to prepare once its data is available
+    private static final long MIN_LEAD_TIME = 5 * 1000;
+    // the lead time used until the throughput has been measured
+    private static final long UNKNOWN_LEAD_TIME = 30 * 1000;
+    private static final double THROUGHPUT_WEIGHT = 0.2;
+
+    private final HeadCache<AudioDataProvider> mHeadCache;
+    private final BandwidthScheduler mBandwidthScheduler;
+    private final ExecutorService mExecutor;
+    private final Set<AudioDataProvider> mPending;
+    private AudioDataProvider mFetching;
+    private Thread mFetchThread;
+
+    private volatile int mDepth;
+    private volatile long mBudget;
+    // bytes per second, 0 if unknown
+    private double mThroughput;
+
+    public PrefetchScheduler(HeadCache<AudioDataProvider> headCache,
+                             BandwidthScheduler bandwidthScheduler) {
+        mHeadCache = headCache;
+        mBandwidthScheduler = bandwidthScheduler;
+        mExecutor = Executors.newSingleThreadExecutor();
+        mPending = new HashSet<>();
+        mDepth = DEFAULT_DEPTH;
+        mBudget = DEFAULT_BUDGET;
+    }
+
+    public int getDepth() {
+        return mDepth;
+    }
+
+    /**
+     * @param depth the number of upcoming tracks whose heads are fetched
+     */
+    public void setDepth(int depth) {
+        mDepth = depth;
+    }
+
+    public long getBudget() {
+        return mBudget;
+    }
+
+    /**
+     * @param budget the maximum number of bytes fetched ahead for upcoming tracks
+     */
+    public void setBudget(long budget) {
+        mBudget = budget;
+    }
+
+    /**
+     * Record a read from a provider.
+     *
+     * @param bytes the number of bytes read
+     * @param nanos how long the read took
+     */
+    public synchronized void recordThroughput(long bytes, long nanos) {
+        if (bytes <= 0 || nanos <= 0) return;
+
+        double throughput = bytes * 1e9 / nanos;
+        if (mThroughput == 0) {
+            mThroughput = throughput;
+        } else {
+            mThroughput += THROUGHPUT_WEIGHT * (throughput - mThroughput);
+        }
+    }
+
+    /**
+     * @return the measured throughput in bytes per second, or 0 if unknown
+     */
+    public synchronized long getThroughput() {
+        return (long) mThroughput;
+    }
+
+    /**
+     * Get how long before the end of the current track the player for the
+     * given provider should be queued, so it's prepared in time.
+     *
+     * @return the lead time in milliseconds
+     */
+    public long getLeadTime(AudioDataProvider next) {
+        if (mHeadCache.contains(next)) return MIN_LEAD_TIME;
+
+        long throughput = getThroughput();
+        if (throughput == 0) return UNKNOWN_LEAD_TIME;
+
+        return MIN_LEAD_TIME + mHeadCache.getHeadSize() * 1000L / throughput;
+    }
+
+    /**
+     * Fetch the heads of the given upcoming providers, none of which may be
+     * in use. As many as the depth and budget allow are fetched.
+     */
+    public synchronized void prefetch(List<AudioDataProvider> upcoming) {
+        if (mExecutor.isShutdown()) return;
+
+        long budget = mBudget;
+        int count = (int) Math.min(Math.min(mDepth, upcoming.size()),
+                budget / mHeadCache.getHeadSize());
+
+        for (int i = 0; i < count; i++) {
+            final AudioDataProvider provider = upcoming.get(i);
+            if (mHeadCache.contains(provider) || !mPending.add(provider)) continue;
+
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    fetch(provider);
+                }
+            });
+        }
+    }
+
+    /**
+     * Cancel the prefetch of the given provider, so the provider can be used.
+     * A fetch in progress is aborted, which fails a read blocked on the
+     * network right away, and keeps the part of the head it got, so this
+     * never waits on a download.
+     */
+    public synchronized void awaitProvider(AudioDataProvider provider) {
+        mPending.remove(provider);
+
+        if (mFetching == provider) {
+            // the interrupt stops throttling waits, the abort blocked reads
+            mFetchThread.interrupt();
+            provider.abort();
+        }
+
+        while (mFetching == provider) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void fetch(AudioDataProvider provider) {
+        synchronized (this) {
+            // canceled while queued
+            if (!mPending.remove(provider)) return;
+            mFetching = provider;
+            mFetchThread = Thread.currentThread();
+        }
+
+        try {
+            mBandwidthScheduler.acquireConnection();
+            try {
+                fetchHead(provider);
+            } finally {
+                mBandwidthScheduler.closeConnections(1);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            synchronized (this) {
+                // released under the lock, so an abort can't come in after it
+                provider.release();
+                mFetching = null;
+                mFetchThread = null;
+                // a cancel may have come in after the fetch was done
+                Thread.interrupted();
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Fetch the head of the provider, which fetch() releases afterwards.
+     */
+    private void fetchHead(AudioDataProvider provider) {
+        if (!provider.prepare()) return;
+
+        // the slot acquired covers one connection, count the provider's others
+        int extraConnections = Math.max(0, provider.getConnectionCount() - 1);
+        mBandwidthScheduler.openConnections(extraConnections);
+
+        try {
+            // local files start instantly anyway
+            if (provider.getFileChannel() != null) return;
+
+            ByteBuffer head = ByteBuffer.allocate(mHeadCache.getHeadSize());
+            boolean complete = false;
+
+            while (head.hasRemaining() && !Thread.currentThread().isInterrupted()) {
+                try {
+                    mBandwidthScheduler.beforeRead(BandwidthScheduler.Priority.BACKGROUND);
+                } catch (InterruptedException e) {
+                    // canceled, keep what was fetched so far
+                    break;
+                }
+
+                long start = System.nanoTime();
+                int size = provider.provideData(head);
+                long elapsed = System.nanoTime() - start;
+
+                mBandwidthScheduler.afterRead(BandwidthScheduler.Priority.BACKGROUND, size);
+                if (size > 0) {
+                    recordThroughput(size, elapsed);
+                } else if (size == AudioDataProvider.STATUS_EOF_REACHED) {
+                    complete = true;
+                    break;
+                } else if (Thread.currentThread().isInterrupted()) {
+                    // the read failed because the fetch was aborted
+                    break;
+                } else {
+                    return;
+                }
+            }
+            if (head.position() == 0) return;
+
+            Log.i(TAG, "Prefetched " + head.position() + " bytes of " + provider.getId());
+            mHeadCache.put(provider, new HeadCache.Head(
+                    Arrays.copyOf(head.array(), head.position()),
+                    provider.getLength(), provider.isSeekable(), complete));
+        } finally {
+            mBandwidthScheduler.closeConnections(extraConnections);
+        }
+    }
+
+    public void shutdown() {
+        synchronized (this) {
+            mPending.clear();
+        }
+        mExecutor.shutdownNow();
+    }
+}
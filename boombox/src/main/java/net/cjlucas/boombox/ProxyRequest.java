@@ -0,0 +1,150 @@
+package net.cjlucas.boombox;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A parsed HTTP request received by the {@link ProxyServer}.
+ */
+class ProxyRequest {
+    private final String mMethod;
+    private final String mPath;
+    private final String mVersion;
+    private final Map<String, String> mHeaders;
+
+    /**
+     * An inclusive byte range resolved against a known content length.
+     */
+    static class ByteRange {
+        public final long start;
+        public final long end;
+
+        ByteRange(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        public boolean isSatisfiable() {
+            return start <= end;
+        }
+
+        public long getLength() {
+            return end - start + 1;
+        }
+    }
+
+    private ProxyRequest(String method, String path, String version,
+                         Map<String, String> headers) {
+        mMethod = method;
+        mPath = path;
+        mVersion = version;
+        mHeaders = headers;
+    }
+
+    /**
+     * Parse the request line and headers of an HTTP request.
+     *
+     * @param request the raw request, up to and including the blank line
+     * @return the parsed request, or null if the request is malformed
+     */
+    public static ProxyRequest parse(String request) {
+        String[] lines = request.split("\r\n");
+        if (lines.length == 0) return null;
+
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3) return null;
+
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            int sep = lines[i].indexOf(':');
+            if (sep <= 0) continue;
+
+            headers.put(lines[i].substring(0, sep).trim().toLowerCase(Locale.US),
+                    lines[i].substring(sep + 1).trim());
+        }
+
+        return new ProxyRequest(requestLine[0], requestLine[1], requestLine[2], headers);
+    }
+
+    public String getMethod() {
+        return mMethod;
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    public String getVersion() {
+        return mVersion;
+    }
+
+    public String getHeader(String name) {
+        return mHeaders.get(name.toLowerCase(Locale.US));
+    }
+
+    public boolean isHead() {
+        return "HEAD".equals(mMethod);
+    }
+
+    public boolean isHttp11() {
+        return "HTTP/1.1".equals(mVersion);
+    }
+
+    /**
+     * Whether the client wants the connection kept open after the response.
+     */
+    public boolean isKeepAlive() {
+        String connection = getHeader("Connection");
+
+        if (isHttp11()) {
+            return connection == null || !connection.equalsIgnoreCase("close");
+        }
+
+        return connection != null && connection.equalsIgnoreCase("keep-alive");
+    }
+
+    /**
+     * Resolve the request's Range header against the given content length.
+     * Only single "bytes" ranges are supported; anything else is ignored,
+     * as allowed by RFC 7233.
+     *
+     * @param length the full content length
+     * @return the requested range, null if the full content should be sent
+     */
+    public ByteRange getRange(long length) {
+        String value = getHeader("Range");
+        if (value == null || length <= 0) return null;
+
+        value = value.trim();
+        if (!value.startsWith("bytes=") || value.indexOf(',') != -1) return null;
+
+        String spec = value.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash == -1) return null;
+
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+
+            if (first.isEmpty()) {
+                // suffix range: the final N bytes
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0) return new ByteRange(length, length - 1);
+                return new ByteRange(Math.max(0, length - suffix), length - 1);
+            }
+
+            long start = Long.parseLong(first);
+            long end = last.isEmpty() ? length - 1 : Long.parseLong(last);
+            if (end < start) return null;
+
+            if (start >= length) {
+                return new ByteRange(start, start - 1);
+            }
+
+            return new ByteRange(start, Math.min(end, length - 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
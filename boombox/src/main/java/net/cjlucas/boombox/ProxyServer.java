@@ -1,59 +1,688 @@
 package net.cjlucas.boombox;
 
+import android.util.Log;
+
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.URL;
-
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A single threaded, selector based HTTP proxy shared by all providers.
+ * Accepting connections, reading requests and writing data all happen on
+ * the proxy's own thread. Each provider gets a {@link Stream}, which is
+ * served at /stream/{token}.
+ */
 public class ProxyServer extends Thread {
+    private static final String TAG = "ProxyServer";
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final String STREAM_PATH_PREFIX = "/stream/";
+    private static final int REQUEST_BUFFER_SIZE = 16 * 1024;
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(ASCII);
+    private static final long DEFAULT_WRITE_TIMEOUT = 10 * 1000;
+    private static final long DEFAULT_DROP_TIMEOUT = 5 * 60 * 1000;
+    private static final int BUFFER_CAPACITY = 512 * 1024;
+    private static final int BUFFER_LOW_WATERMARK = 128 * 1024;
+    private static final int BUFFER_HIGH_WATERMARK = 384 * 1024;
+
     private String mHost;
     private int mPort;
-    private ServerSocket mServerSocket;
-    private DataForwarder mCurrentForwarder;
-    private long mContentLength;
-    private boolean mRunning;
+    private ServerSocketChannel mServerChannel;
+    private Selector mSelector;
+    private final Map<String, Stream> mStreams;
+    private final AtomicInteger mNextToken;
+    private volatile long mWriteTimeout;
+    private volatile SlowConsumerPolicy mSlowConsumerPolicy;
+    private volatile boolean mRunning;
+
+    /**
+     * Decides what happens to a stream whose client stopped reading, e.g.
+     * because playback is paused or the decoder is stuck.
+     */
+    public interface SlowConsumerPolicy {
+        enum Action {
+            /** keep waiting for the client */
+            WAIT,
+            /** keep the connection, but let the producer release its upstream */
+            PAUSE_UPSTREAM,
+            /** close the connection and let the producer release its upstream */
+            DROP
+        }
 
-    private class DataForwarder extends Thread {
-        private Socket mConn;
-        private boolean mWaitingForData;
+        /**
+         * Called periodically for as long as a connection has unwritten
+         * data and hasn't accepted any for longer than the write timeout.
+         *
+         * @param stalledMillis how long the connection hasn't accepted data
+         */
+        Action onSlowConsumer(Stream stream, long stalledMillis);
+    }
+
+    /**
+     * The default policy: pause the upstream once the write timeout passes,
+     * and drop the connection if the client still isn't reading after the
+     * drop timeout.
+     */
+    public static class TimeoutSlowConsumerPolicy implements SlowConsumerPolicy {
+        private final long mDropTimeout;
+
+        public TimeoutSlowConsumerPolicy(long dropTimeout) {
+            mDropTimeout = dropTimeout;
+        }
 
-        public DataForwarder(Socket conn) {
-            setPriority(Thread.MIN_PRIORITY);
-            mConn = conn;
+        @Override
+        public Action onSlowConsumer(Stream stream, long stalledMillis) {
+            return stalledMillis >= mDropTimeout ? Action.DROP : Action.PAUSE_UPSTREAM;
         }
+    }
+
+    /**
+     * A single routable stream. Requests for the stream's path are handed
+     * to the producer with {@link #pollRequest()}, which answers them with
+     * {@link #sendResponse} and {@link #sendData(ByteBuffer)}. Response data is
+     * staged in a ring buffer that the proxy thread drains into the socket.
+     */
+    public class Stream {
+        private final String mToken;
+        private final ByteRingBuffer mBuffer;
+        private volatile Connection mCurrentConnection;
+        private final AtomicReference<ProxyRequest> mPendingRequest;
+        private volatile boolean mUpstreamPaused;
+        private volatile boolean mOpen;
+        private final CountDownLatch mFirstRequestLatch;
+        private boolean mSignalled;
+
+        private Stream(String token) {
+            mToken = token;
+            mBuffer = new ByteRingBuffer(BUFFER_CAPACITY,
+                    BUFFER_LOW_WATERMARK, BUFFER_HIGH_WATERMARK);
+            mPendingRequest = new AtomicReference<>();
+            mOpen = true;
+            mFirstRequestLatch = new CountDownLatch(1);
+        }
+
+        /**
+         * Block until the first request for this stream arrives or the
+         * stream is closed.
+         *
+         * @return false if the timeout elapsed first
+         */
+        public boolean awaitFirstRequest(long timeoutMillis) throws InterruptedException {
+            return mFirstRequestLatch.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Block until something the producer may need to act on happens: a
+         * new request, the upstream being unpaused, the stream being closed,
+         * or a call to {@link #wakeUp()}. Returns immediately if any of those
+         * happened since the last call.
+         */
+        public synchronized void awaitSignal() throws InterruptedException {
+            while (!mSignalled) {
+                wait();
+            }
 
-        public void forwardData(byte[] data) {
+            mSignalled = false;
+        }
+
+        /**
+         * Wake up a producer blocked in {@link #awaitSignal()}.
+         */
+        public synchronized void wakeUp() {
+            mSignalled = true;
+            notifyAll();
+        }
+
+        /**
+         * @return the buffer between the producer and the socket, exposed
+         * for inspecting its fill level
+         */
+        public ByteRingBuffer getBuffer() {
+            return mBuffer;
+        }
+
+        public URL getURL() {
             try {
-                //System.out.println( String.format("DataForwarder: writing %d bytes to outputStream", data.length) );
-                mConn.getOutputStream().write(data, 0, data.length);
-            } catch (IOException e) {
+                return new URL("http", mHost, getPort(), STREAM_PATH_PREFIX + mToken);
+            } catch (MalformedURLException e) {
                 e.printStackTrace();
-                stopServer();
+                return null;
             }
         }
 
+        public boolean isOpen() {
+            return mOpen && mRunning;
+        }
+
+        public boolean hasConnection() {
+            Connection conn = mCurrentConnection;
+            return conn != null && !conn.isClosed();
+        }
+
+        /**
+         * Whether the slow consumer policy asked the producer to release its
+         * upstream. Cleared once the client reads again or sends a new request.
+         */
+        public boolean isUpstreamPaused() {
+            return mUpstreamPaused;
+        }
+
+        private void pauseUpstream() {
+            if (mUpstreamPaused) return;
+
+            Log.d(TAG, "Pausing upstream for stream " + mToken);
+            mUpstreamPaused = true;
+            mBuffer.interruptWriters();
+        }
+
+        /**
+         * Get the most recent request that hasn't been responded to yet.
+         * Each request is only returned once.
+         *
+         * @return the request, or null if no new request has arrived
+         */
+        public ProxyRequest pollRequest() {
+            return mPendingRequest.getAndSet(null);
+        }
+
+        /**
+         * Queue the response headers for the connection a request arrived on.
+         *
+         * @param request the request being responded to
+         * @param status the HTTP status code (200, 206 or 416)
+         * @param range the range being sent for 206 responses, otherwise null
+         * @param length the full content length, or a value <= 0 if unknown
+         * @param acceptRanges whether subsequent range requests can be honored
+         * @return false if the request's connection has since been superseded
+         */
+        public boolean sendResponse(ProxyRequest request, int status, ProxyRequest.ByteRange range,
+                                    long length, boolean acceptRanges) {
+            Connection conn = mCurrentConnection;
+
+            if (conn == null || conn.isClosed() || conn.mRequest != request) {
+                Log.w(TAG, "Request has been superseded");
+                return false;
+            }
+
+            StringBuilder sb = new StringBuilder("HTTP/1.1 ");
+            sb.append(status).append(' ').append(getReasonPhrase(status)).append("\r\n");
+            sb.append("Accept-Ranges: ").append(acceptRanges ? "bytes" : "none").append("\r\n");
+
+            if (status == 206) {
+                sb.append("Content-Range: bytes ").append(range.start).append('-')
+                        .append(range.end).append('/').append(length).append("\r\n");
+                sb.append("Content-Length: ").append(range.getLength()).append("\r\n");
+            } else if (status == 416) {
+                sb.append("Content-Range: bytes */").append(length).append("\r\n");
+                sb.append("Content-Length: 0\r\n");
+            } else if (length > 0) {
+                sb.append("Content-Length: ").append(length).append("\r\n");
+            }
+
+            long bodyLength;
+            if (request.isHead() || status == 416) {
+                bodyLength = 0;
+            } else if (status == 206) {
+                bodyLength = range.getLength();
+            } else {
+                bodyLength = length > 0 ? length : -1;
+            }
+
+            // without a length, the end of the body has to be signalled explicitly
+            boolean chunked = bodyLength < 0 && request.isHttp11();
+            boolean keepAlive = request.isKeepAlive() && (bodyLength >= 0 || chunked);
+
+            if (chunked) {
+                sb.append("Transfer-Encoding: chunked\r\n");
+            }
+            sb.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n");
+            sb.append("\r\n");
+
+            Log.d(TAG, "Writing: " + sb);
+            conn.beginResponse(ByteBuffer.wrap(sb.toString().getBytes(ASCII)),
+                    bodyLength, chunked, keepAlive);
+            mSelector.wakeup();
+            return true;
+        }
+
+        /**
+         * Mark the current response body as complete. Chunked responses are
+         * terminated and close delimited responses are closed once all
+         * buffered data has been written.
+         */
+        public void finish() {
+            Connection conn = mCurrentConnection;
+            if (conn == null || conn.isClosed() || !conn.mResponding) return;
+
+            conn.finishResponse();
+            mSelector.wakeup();
+        }
+
+        /**
+         * Drop the current connection without completing the response, so
+         * the client can tell the body was truncated.
+         */
+        public void abort() {
+            Connection conn = mCurrentConnection;
+            if (conn != null) {
+                conn.close();
+            }
+        }
+
+        /**
+         * Append the remaining bytes of data to the stream's buffer, which is
+         * drained into the current response. Blocks while the buffer is above
+         * its high watermark. Data may be written ahead of any connection;
+         * it's retained in the buffer until overwritten.
+         *
+         * @return false if writing was interrupted by a new request or the
+         * stream being closed. Unwritten bytes are left in data.
+         */
+        public boolean sendData(ByteBuffer data) {
+            if (!mOpen) return false;
+
+            int limit = data.limit();
+
+            try {
+                while (data.hasRemaining()) {
+                    // hand over chunks that always fit above the high watermark,
+                    // so the proxy thread is woken before the writer can block
+                    data.limit(data.position() + Math.min(data.remaining(),
+                            BUFFER_CAPACITY - BUFFER_HIGH_WATERMARK));
+                    if (!mBuffer.write(data)) return false;
+
+                    data.limit(limit);
+                    mSelector.wakeup();
+                }
+            } catch (InterruptedException e) {
+                close();
+                return false;
+            } finally {
+                data.limit(limit);
+            }
+
+            return true;
+        }
+
+        /**
+         * Serve part of a file as the current response body. The proxy
+         * thread transfers the data straight from the file to the socket
+         * with {@link FileChannel#transferTo}, so it never passes through
+         * a user space buffer. The channel's position is not modified.
+         *
+         * @return false if the connection went away or was superseded
+         */
+        public boolean sendFile(FileChannel channel, long position, long count) {
+            Connection conn = mCurrentConnection;
+
+            if (conn == null || conn.isClosed() || !conn.mResponding) {
+                Log.w(TAG, "No connection available");
+                return false;
+            }
+
+            conn.setFileTransfer(channel, position, count);
+            mSelector.wakeup();
+            return true;
+        }
+
+        /**
+         * Stop routing requests to this stream. A connection whose response
+         * has been finished is closed once it's fully written, otherwise the
+         * connection is dropped immediately.
+         */
         public void close() {
-            mWaitingForData = false;
+            mOpen = false;
+            mStreams.remove(mToken);
+
+            mBuffer.close();
+            mFirstRequestLatch.countDown();
+            wakeUp();
+
+            Connection conn = mCurrentConnection;
+            if (conn != null && conn.isFinishing()) {
+                conn.closeWhenDrained();
+                mSelector.wakeup();
+            } else if (conn != null) {
+                conn.close();
+            }
+        }
+
+        private void attach(Connection conn) {
+            // a new request supersedes whatever connection was being served
+            Connection oldConn = mCurrentConnection;
+            if (oldConn != null && oldConn != conn) {
+                oldConn.close();
+            }
+
+            conn.mStream = this;
+            mCurrentConnection = conn;
+            mUpstreamPaused = false;
+            mPendingRequest.set(conn.mRequest);
+
+            // don't leave the producer blocked on a full buffer
+            mBuffer.interruptWriters();
+            mFirstRequestLatch.countDown();
+            wakeUp();
+        }
+
+        private boolean isServing(Connection conn) {
+            return mCurrentConnection == conn && conn.mResponding;
+        }
+    }
+
+    private class Connection {
+        private final SocketChannel mChannel;
+        private final ByteBuffer mRequestBuffer;
+        private final ArrayDeque<ByteBuffer> mPending;
+        private volatile Stream mStream;
+        private FileChannel mFileChannel;
+        private long mFilePosition;
+        private long mFileRemaining;
+        private final ByteBuffer mChunkHeader;
+        private boolean mChunked;
+        private boolean mChunkSent;
+        private long mChunkRemaining;
+        private boolean mFinishing;
+        private boolean mTerminatorQueued;
+        private long mBodyRemaining;
+        private boolean mKeepAlive;
+        private boolean mIdle;
+        private long mLastProgress;
+        private volatile ProxyRequest mRequest;
+        private volatile boolean mResponding;
+        private boolean mCloseWhenDrained;
+        private boolean mClosed;
+
+        public Connection(SocketChannel channel) {
+            mChannel = channel;
+            mRequestBuffer = ByteBuffer.allocate(REQUEST_BUFFER_SIZE);
+            mPending = new ArrayDeque<>();
+            mChunkHeader = ByteBuffer.allocate(32);
+            mChunkHeader.limit(0);
+        }
+
+        /**
+         * Read request data until the end of the request headers is found.
+         * @return true if the full request has been received
+         */
+        public boolean readRequest() throws IOException {
+            if (mChannel.read(mRequestBuffer) == -1) {
+                throw new IOException("connection closed by peer");
+            }
+
+            byte[] data = mRequestBuffer.array();
+            for (int i = 3; i < mRequestBuffer.position(); i++) {
+                if (data[i - 3] == '\r' && data[i - 2] == '\n'
+                        && data[i - 1] == '\r' && data[i] == '\n') {
+                    mRequest = ProxyRequest.parse(new String(data, 0, i + 1, ASCII));
+                    return true;
+                }
+            }
+
+            if (!mRequestBuffer.hasRemaining()) {
+                throw new IOException("request too large");
+            }
+
+            return false;
+        }
+
+        /**
+         * Answer the request with an error status and close the connection.
+         */
+        public void sendError(int status) {
+            String response = "HTTP/1.1 " + status + " " + getReasonPhrase(status)
+                    + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n";
+            beginResponse(ByteBuffer.wrap(response.getBytes(ASCII)), 0, false, false);
+        }
+
+        /**
+         * Queue the headers of a new response and reset the body state.
+         *
+         * @param bodyLength the length of the body, or -1 if it's delimited
+         *                   by chunked encoding or by closing the connection
+         * @param chunked whether the body uses chunked transfer encoding
+         * @param keepAlive whether to wait for another request afterwards
+         */
+        public synchronized void beginResponse(ByteBuffer headers, long bodyLength,
+                                               boolean chunked, boolean keepAlive) {
+            mPending.add(headers);
+            mBodyRemaining = bodyLength;
+            mChunked = chunked;
+            mKeepAlive = keepAlive;
+            mChunkSent = false;
+            mChunkRemaining = 0;
+            mChunkHeader.limit(0);
+            mFinishing = false;
+            mTerminatorQueued = false;
+            mCloseWhenDrained = false;
+            mResponding = true;
+        }
+
+        /**
+         * Called once the full response has been written. Persistent
+         * connections go back to waiting for the next request.
+         */
+        private void endResponse() {
+            if (!mKeepAlive || mCloseWhenDrained) {
+                close();
+                return;
+            }
+
+            mResponding = false;
+            mRequestBuffer.clear();
+        }
+
+        public synchronized void finishResponse() {
+            mFinishing = true;
+        }
+
+        public synchronized boolean isFinishing() {
+            return mFinishing;
+        }
+
+        public synchronized void closeWhenDrained() {
+            mCloseWhenDrained = true;
+        }
+
+        private long progress(long written) {
+            if (written > 0) {
+                mLastProgress = now();
+
+                Stream stream = mStream;
+                if (stream != null && stream.mUpstreamPaused && stream.isServing(this)) {
+                    // the client is reading again
+                    stream.mUpstreamPaused = false;
+                    stream.wakeUp();
+                }
+            }
+
+            return written;
+        }
+
+        /**
+         * @return how long the connection has had unwritten data without
+         * accepting any of it, or 0 if it isn't stalled
+         */
+        public synchronized long getStalledMillis(long now) {
+            if (!hasPendingData()) {
+                mIdle = true;
+                return 0;
+            }
+
+            if (mIdle) {
+                // data just became available, the clock starts now
+                mIdle = false;
+                mLastProgress = now;
+            }
+
+            return now - mLastProgress;
+        }
+
+        public synchronized void setFileTransfer(FileChannel channel, long position, long count) {
+            mFileChannel = channel;
+            mFilePosition = position;
+            mFileRemaining = count;
         }
 
-        public void run() {
-            mWaitingForData = true;
+        public synchronized boolean hasPendingData() {
+            if (!mResponding) return false;
+
+            if (!mPending.isEmpty() || mFileRemaining > 0 || mChunkHeader.hasRemaining()) {
+                return true;
+            }
+
+            // the response is complete, or will be once buffered data is written
+            if (mFinishing || mBodyRemaining == 0) return true;
+
+            Stream stream = mStream;
+            return stream != null && stream.isServing(this) && !stream.mBuffer.isEmpty();
+        }
+
+        /**
+         * Write queued headers followed by any buffered stream data.
+         */
+        public synchronized void writePending() throws IOException {
+            while (!mPending.isEmpty()) {
+                ByteBuffer buf = mPending.peek();
+                progress(mChannel.write(buf));
+
+                if (buf.hasRemaining()) return;
+                mPending.poll();
+            }
+
+            if (mFileRemaining > 0) {
+                long written = progress(
+                        mFileChannel.transferTo(mFilePosition, mFileRemaining, mChannel));
+                mFilePosition += written;
+                mFileRemaining -= written;
+                mBodyRemaining -= written;
+
+                if (mFileRemaining > 0) return;
+                mFileChannel = null;
+            }
+
+            Stream stream = mStream;
+            ByteRingBuffer buffer = stream != null && stream.isServing(this)
+                    ? stream.mBuffer : null;
 
-            while (mWaitingForData) {
-                try {
-                    Thread.sleep(50);
-                } catch (InterruptedException e) {
-                    stopServer();
+            if (mChunked) {
+                if (buffer != null && !writeChunks(buffer)) return;
+                if (!mFinishing || !writeTerminator()) return;
+            } else if (mBodyRemaining >= 0) {
+                if (buffer != null && mBodyRemaining > 0) {
+                    mBodyRemaining -= progress(buffer.drainTo(mChannel, mBodyRemaining));
                 }
+
+                if (mBodyRemaining > 0) {
+                    // the producer gave up before the full body was sent
+                    if (mFinishing && (buffer == null || buffer.isEmpty())) close();
+                    return;
+                }
+            } else {
+                if (buffer != null) progress(buffer.drainTo(mChannel, Long.MAX_VALUE));
+                if (!mFinishing || (buffer != null && !buffer.isEmpty())) return;
+            }
+
+            endResponse();
+        }
+
+        /**
+         * Frame buffered data into chunks as it's written.
+         *
+         * @return true if all buffered data has been written
+         */
+        private boolean writeChunks(ByteRingBuffer buffer) throws IOException {
+            while (true) {
+                if (mChunkHeader.hasRemaining()) {
+                    progress(mChannel.write(mChunkHeader));
+                    if (mChunkHeader.hasRemaining()) return false;
+                }
+
+                if (mChunkRemaining > 0) {
+                    mChunkRemaining -= progress(buffer.drainTo(mChannel, mChunkRemaining));
+                    if (mChunkRemaining > 0) return false;
+                }
+
+                int size = buffer.size();
+                if (size == 0) return true;
+
+                // the CRLF ending the previous chunk is sent with the next header
+                mChunkHeader.clear();
+                if (mChunkSent) mChunkHeader.put((byte) '\r').put((byte) '\n');
+                putHex(mChunkHeader, size);
+                mChunkHeader.put((byte) '\r').put((byte) '\n');
+                mChunkHeader.flip();
+
+                mChunkRemaining = size;
+                mChunkSent = true;
             }
         }
+
+        /**
+         * @return true once the last-chunk marker has been fully written
+         */
+        private boolean writeTerminator() throws IOException {
+            if (!mTerminatorQueued) {
+                mChunkHeader.clear();
+                if (mChunkSent) mChunkHeader.put((byte) '\r').put((byte) '\n');
+                mChunkHeader.put("0\r\n\r\n".getBytes(ASCII));
+                mChunkHeader.flip();
+                mTerminatorQueued = true;
+            }
+
+            progress(mChannel.write(mChunkHeader));
+            return !mChunkHeader.hasRemaining();
+        }
+
+        private void putHex(ByteBuffer buf, int value) {
+            int shift = 28;
+            while (shift > 0 && (value >>> shift) == 0) shift -= 4;
+
+            for (; shift >= 0; shift -= 4) {
+                buf.put(HEX_DIGITS[(value >>> shift) & 0xf]);
+            }
+        }
+
+        public synchronized void close() {
+            mClosed = true;
+            mPending.clear();
+            mFileChannel = null;
+            mFileRemaining = 0;
+
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        public synchronized boolean isClosed() {
+            return mClosed;
+        }
     }
 
     public ProxyServer() {
         mHost = "127.0.0.1";
         mPort = 0;
+        mStreams = new ConcurrentHashMap<>();
+        mNextToken = new AtomicInteger();
+        mWriteTimeout = DEFAULT_WRITE_TIMEOUT;
+        mSlowConsumerPolicy = new TimeoutSlowConsumerPolicy(DEFAULT_DROP_TIMEOUT);
     }
 
     public ProxyServer(int port) {
@@ -61,92 +690,203 @@ public class ProxyServer extends Thread {
         mPort = port;
     }
 
-    public URL getURL() {
-        try {
-            return new URL("http", "0.0.0.0", getPort(), "/");
-        } catch (MalformedURLException e) {
-            e.printStackTrace();
-            return null;
-        }
-    }
-
     public int getPort() {
-        return mServerSocket.getLocalPort();
+        return mServerChannel.socket().getLocalPort();
     }
 
     public boolean isRunning() {
         return mRunning;
     }
 
-    public void setContentLength(long contentLength) {
-        mContentLength = contentLength;
+    /**
+     * Set how long a connection may go without accepting data before the
+     * slow consumer policy is consulted.
+     */
+    public void setWriteTimeout(long writeTimeoutMillis) {
+        mWriteTimeout = writeTimeoutMillis;
     }
 
-    public boolean hasConnection() {
-        return mCurrentForwarder != null;
+    public long getWriteTimeout() {
+        return mWriteTimeout;
     }
 
-    public void sendData(byte[] data) {
-        if (mCurrentForwarder == null) {
-            System.err.println("No forwarder available");
-            return;
+    public void setSlowConsumerPolicy(SlowConsumerPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("policy cannot be null");
         }
+        mSlowConsumerPolicy = policy;
+    }
 
-        mCurrentForwarder.forwardData(data);
+    private static long now() {
+        return System.nanoTime() / 1000000;
     }
 
-    public void runForever() {
+    /**
+     * Register a new stream with the proxy.
+     *
+     * @return the stream, reachable at {@link Stream#getURL()}
+     */
+    public Stream openStream() {
+        Stream stream = new Stream(Integer.toString(mNextToken.incrementAndGet()));
+        mStreams.put(stream.mToken, stream);
+        return stream;
+    }
 
-        mRunning = true;
+    private static String getReasonPhrase(int status) {
+        switch (status) {
+            case 200:
+                return "OK";
+            case 206:
+                return "Partial Content";
+            case 400:
+                return "Bad Request";
+            case 404:
+                return "Not Found";
+            case 416:
+                return "Requested Range Not Satisfiable";
+            default:
+                return "Unknown";
+        }
+    }
 
+    public void runForever() {
         while (mRunning) {
-            Socket s = accept();
-            System.out.println("ProxyServer: got a connection!");
-            write(s, "HTTP/1.1 200 OK\r\n");
-            if (mContentLength > 0) {
-                write(s, "Content-Length: " + mContentLength + "\r\n");
+            try {
+                // only wake up periodically while there's data to write
+                if (updateInterestOps()) {
+                    mSelector.select(Math.max(1, Math.min(1000, mWriteTimeout)));
+                    checkSlowConsumers();
+                } else {
+                    mSelector.select();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                stopServer();
+                break;
             }
 
-            write(s, "\r\n");
+            Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
 
-            try {
-                InputStreamReader inStream = new InputStreamReader(s.getInputStream());
-
-                char[] reqData = new char[16 * 1024];
-                inStream.read(reqData);
+                if (!key.isValid()) continue;
 
-                //              System.out.println("Request Data:");
-                //              System.out.println(reqData);
-            } catch (IOException e) {
-                close(s);
-                continue;
+                if (key.isAcceptable()) {
+                    handleAccept();
+                } else {
+                    handleConnection(key);
+                }
             }
+        }
 
-            mCurrentForwarder = new DataForwarder(s);
-            mCurrentForwarder.start();
-            try {
-                mCurrentForwarder.join();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-                stopServer();
-            } finally {
-                mCurrentForwarder = null;
+        tearDown();
+    }
+
+    /**
+     * @return true if any connection has data waiting to be written
+     */
+    private boolean updateInterestOps() {
+        boolean writing = false;
+
+        for (SelectionKey key : mSelector.keys()) {
+            if (!key.isValid() || !(key.attachment() instanceof Connection)) continue;
+
+            Connection conn = (Connection) key.attachment();
+            if (conn.isClosed()) continue;
+
+            if (!conn.mResponding) {
+                key.interestOps(SelectionKey.OP_READ);
+            } else if (conn.hasPendingData()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+                writing = true;
+            } else {
+                key.interestOps(0);
             }
+        }
 
-            close(s);
+        return writing;
+    }
+
+    private void checkSlowConsumers() {
+        long now = now();
+
+        for (SelectionKey key : mSelector.keys()) {
+            if (!key.isValid() || !(key.attachment() instanceof Connection)) continue;
+
+            Connection conn = (Connection) key.attachment();
+            Stream stream = conn.mStream;
+            if (conn.isClosed() || stream == null || !stream.isServing(conn)) continue;
+
+            long stalled = conn.getStalledMillis(now);
+            if (stalled < mWriteTimeout) continue;
+
+            switch (mSlowConsumerPolicy.onSlowConsumer(stream, stalled)) {
+                case PAUSE_UPSTREAM:
+                    stream.pauseUpstream();
+                    break;
+                case DROP:
+                    Log.w(TAG, "Dropping slow consumer");
+                    stream.pauseUpstream();
+                    key.cancel();
+                    conn.close();
+                    break;
+                default:
+                    break;
+            }
         }
+    }
 
-        tearDown();
+    private void handleAccept() {
+        try {
+            SocketChannel channel = mServerChannel.accept();
+            if (channel == null) return;
+
+            Log.d(TAG, "Got a connection");
+            channel.configureBlocking(false);
+            channel.register(mSelector, SelectionKey.OP_READ, new Connection(channel));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
-    private void write(Socket s, String str) {
+    private void handleConnection(SelectionKey key) {
+        Connection conn = (Connection) key.attachment();
+
         try {
-            System.out.println("ProxyServer: writing: " + str);
-            s.getOutputStream().write(str.getBytes(), 0, str.length());
+            if (key.isReadable() && !conn.mResponding) {
+                if (conn.readRequest()) {
+                    handleRequest(conn);
+                }
+            } else if (key.isWritable()) {
+                conn.writePending();
+            }
         } catch (IOException e) {
             e.printStackTrace();
-            stopServer();
+            key.cancel();
+            conn.close();
+        }
+    }
+
+    private void handleRequest(Connection conn) {
+        if (conn.mRequest == null) {
+            conn.sendError(400);
+            return;
         }
+
+        Log.d(TAG, "Got request: " + conn.mRequest.getMethod()
+                + " " + conn.mRequest.getPath() + " Range: " + conn.mRequest.getHeader("Range"));
+
+        String path = conn.mRequest.getPath();
+        Stream stream = path.startsWith(STREAM_PATH_PREFIX)
+                ? mStreams.get(path.substring(STREAM_PATH_PREFIX.length())) : null;
+
+        if (stream == null) {
+            conn.sendError(404);
+            return;
+        }
+
+        stream.attach(conn);
     }
 
     public void run() {
@@ -155,7 +895,12 @@ public class ProxyServer extends Thread {
 
     public boolean startServer() {
         try {
-            mServerSocket = new ServerSocket(mPort);
+            mSelector = Selector.open();
+            mServerChannel = ServerSocketChannel.open();
+            mServerChannel.socket().bind(new InetSocketAddress(mHost, mPort));
+            mServerChannel.configureBlocking(false);
+            mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+            mRunning = true;
             return true;
         } catch (IOException e) {
             e.printStackTrace();
@@ -164,36 +909,30 @@ public class ProxyServer extends Thread {
     }
 
     public void stopServer() {
-        if (mCurrentForwarder != null) {
-            mCurrentForwarder.close();
+        for (Stream stream : mStreams.values()) {
+            stream.close();
         }
 
         mRunning = false;
-    }
 
-    private Socket accept() {
-        try {
-            return mServerSocket.accept();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return null;
-    }
-
-    private void close(Socket socket) {
-        try {
-            socket.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+        if (mSelector != null) {
+            mSelector.wakeup();
         }
     }
 
     private void tearDown() {
         try {
-            if (mServerSocket != null) {
-                mServerSocket.close();
+            for (SelectionKey key : mSelector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    ((Connection) key.attachment()).close();
+                }
             }
+
+            if (mServerChannel != null) {
+                mServerChannel.close();
+            }
+
+            mSelector.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
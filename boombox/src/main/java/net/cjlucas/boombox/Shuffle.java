@@ -0,0 +1,149 @@
+package net.cjlucas.boombox;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A random permutation of the indexes [0, size), generated lazily by a
+ * seeded Fisher-Yates shuffle.
+ *
+ * Positions are drawn in order as they are asked for, so creating a shuffle
+ * is O(1) and walking it is O(1) per position. The permutation and its
+ * inverse are kept in int arrays that are allocated on the first draw.
+ * Lookups never change the order, so the same seed, size and first index
+ * always give the same permutation.
+ */
+class Shuffle {
+    private final long mSeed;
+    private final Random mRandom;
+    private int mSize;
+
+    // positions [0, mDrawn) are final, the rest is still to be shuffled
+    private int mDrawn;
+
+    // the value at a position plus one, 0 for positions holding their own index
+    private int[] mValues;
+    // the position of a value plus one, 0 for values at their own index
+    private int[] mPositions;
+
+    public Shuffle(int size, long seed) {
+        mSeed = seed;
+        mRandom = new Random(seed);
+        mSize = size;
+    }
+
+    /**
+     * @param first the index put at the first position
+     */
+    public Shuffle(int size, long seed, int first) {
+        this(size, seed);
+
+        checkIndex(first);
+        swap(0, rawPositionOf(first));
+        mDrawn = 1;
+    }
+
+    public long getSeed() {
+        return mSeed;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return the number of positions that are final, the later ones
+     * change when the shuffle grows
+     */
+    public int getDrawnCount() {
+        return mDrawn;
+    }
+
+    /**
+     * @return the index at the given position
+     */
+    public int get(int position) {
+        if (position < 0 || position >= mSize) {
+            throw new IndexOutOfBoundsException("position: " + position + ", size: " + mSize);
+        }
+
+        while (mDrawn <= position) {
+            draw();
+        }
+
+        return valueAt(position);
+    }
+
+    /**
+     * Get the position of the given index. If it hasn't been drawn yet, the
+     * positions up to it are drawn, in the same order walking the shuffle
+     * would draw them.
+     */
+    public int positionOf(int value) {
+        checkIndex(value);
+
+        while (rawPositionOf(value) >= mDrawn) {
+            draw();
+        }
+
+        return rawPositionOf(value);
+    }
+
+    /**
+     * Extend the permutation with the indexes [size, newSize). The new
+     * indexes are shuffled into the positions that haven't been drawn yet.
+     */
+    public void grow(int newSize) {
+        if (newSize < mSize) {
+            throw new IllegalArgumentException("a shuffle can't shrink");
+        }
+        mSize = newSize;
+
+        // new slots are 0, which means they hold their own index
+        if (mValues != null && mValues.length < newSize) {
+            int capacity = Math.max(newSize, mValues.length + (mValues.length >> 1));
+            mValues = Arrays.copyOf(mValues, capacity);
+            mPositions = Arrays.copyOf(mPositions, capacity);
+        }
+    }
+
+    private void checkIndex(int value) {
+        if (value < 0 || value >= mSize) {
+            throw new IndexOutOfBoundsException("index: " + value + ", size: " + mSize);
+        }
+    }
+
+    private void draw() {
+        swap(mDrawn, mDrawn + mRandom.nextInt(mSize - mDrawn));
+        mDrawn++;
+    }
+
+    private int valueAt(int position) {
+        if (mValues == null || mValues[position] == 0) return position;
+        return mValues[position] - 1;
+    }
+
+    private int rawPositionOf(int value) {
+        if (mPositions == null || mPositions[value] == 0) return value;
+        return mPositions[value] - 1;
+    }
+
+    private void swap(int a, int b) {
+        if (a == b) return;
+
+        if (mValues == null) {
+            mValues = new int[mSize];
+            mPositions = new int[mSize];
+        }
+
+        int valueA = valueAt(a);
+        int valueB = valueAt(b);
+        set(a, valueB);
+        set(b, valueA);
+    }
+
+    private void set(int position, int value) {
+        mValues[position] = position == value ? 0 : value + 1;
+        mPositions[value] = position == value ? 0 : position + 1;
+    }
+}
@@ -0,0 +1,461 @@
+package net.cjlucas.boombox.cache;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * A size capped, least recently used store of remote content on disk.
+ *
+ * Every entry is a data file holding a prefix of the content, plus a small
+ * metadata file with the url, the validators (ETag and Last-Modified) the
+ * data belongs to, and the full content length. An entry only ever holds
+ * one version of the content: storing a new version clears the old data.
+ *
+ * Entries that are open are never evicted, so the cache can temporarily
+ * grow past its maximum size.
+ */
+public class DiskCache {
+    private static final String TAG = "DiskCache";
+    private static final String DATA_SUFFIX = ".data";
+    private static final String META_SUFFIX = ".meta";
+
+    private final File mDirectory;
+    private final long mMaxSize;
+    private final LinkedHashMap<String, Entry> mEntries;
+    private long mSize;
+
+    public class Entry {
+        private final String mKey;
+        private final String mUrl;
+        private final File mDataFile;
+        private final File mMetaFile;
+
+        private String mETag;
+        private String mLastModified;
+        private long mLength;
+        private long mCachedLength;
+        private boolean mComplete;
+
+        private RandomAccessFile mFile;
+        private int mOpenCount;
+
+        private Entry(String key, String url) {
+            mKey = key;
+            mUrl = url;
+            mDataFile = new File(mDirectory, key + DATA_SUFFIX);
+            mMetaFile = new File(mDirectory, key + META_SUFFIX);
+            mLength = -1;
+        }
+
+        public String getUrl() {
+            return mUrl;
+        }
+
+        public synchronized String getETag() {
+            return mETag;
+        }
+
+        public synchronized String getLastModified() {
+            return mLastModified;
+        }
+
+        /**
+         * @return the full length of the content, or -1 if it's unknown
+         */
+        public synchronized long getLength() {
+            return mLength;
+        }
+
+        /**
+         * @return the number of bytes, from the start of the content, held
+         * by this entry
+         */
+        public synchronized long getCachedLength() {
+            return mCachedLength;
+        }
+
+        public synchronized boolean isComplete() {
+            return mComplete;
+        }
+
+        /**
+         * Whether the cached data can be revalidated with the server.
+         */
+        public synchronized boolean hasValidator() {
+            return mETag != null || mLastModified != null;
+        }
+
+        /**
+         * Discard the cached data and start caching the given version of
+         * the content.
+         */
+        public void reset(String etag, String lastModified, long length) {
+            long cachedLength;
+
+            synchronized (this) {
+                cachedLength = mCachedLength;
+
+                mETag = etag;
+                mLastModified = lastModified;
+                mLength = length;
+                mCachedLength = 0;
+                mComplete = false;
+
+                try {
+                    getFile().setLength(0);
+                } catch (IOException e) {
+                    Log.e(TAG, "Couldn't truncate " + mDataFile);
+                }
+                writeMetadata();
+            }
+
+            addSize(-cachedLength);
+        }
+
+        /**
+         * Update the validators and content length of the cached version,
+         * keeping the cached data.
+         */
+        public synchronized void update(String etag, String lastModified, long length) {
+            mETag = etag;
+            mLastModified = lastModified;
+            mLength = length;
+            writeMetadata();
+        }
+
+        /**
+         * Read cached data.
+         *
+         * @param position the content offset to read from
+         * @return the number of bytes read, or -1 if position isn't cached
+         */
+        public synchronized int read(long position, byte[] buffer, int offset, int length)
+                throws IOException {
+            if (position >= mCachedLength) return -1;
+
+            RandomAccessFile file = getFile();
+            file.seek(position);
+            return file.read(buffer, offset, (int) Math.min(length, mCachedLength - position));
+        }
+
+        /**
+         * Append data following the cached data.
+         *
+         * @param position the content offset of the data, the data is
+         * dropped if it doesn't directly follow the cached data
+         */
+        public void append(long position, byte[] buffer, int offset, int length) {
+            synchronized (this) {
+                if (mComplete || position != mCachedLength) return;
+
+                try {
+                    RandomAccessFile file = getFile();
+                    file.seek(mCachedLength);
+                    file.write(buffer, offset, length);
+                } catch (IOException e) {
+                    Log.e(TAG, "Couldn't write to " + mDataFile);
+                    return;
+                }
+
+                mCachedLength += length;
+                if (mLength > 0 && mCachedLength >= mLength) {
+                    mComplete = true;
+                    writeMetadata();
+                }
+            }
+
+            addSize(length);
+        }
+
+        /**
+         * Mark the cached data as the full content, for content whose length
+         * wasn't known up front.
+         */
+        public synchronized void markComplete() {
+            if (mComplete) return;
+
+            mComplete = true;
+            mLength = mCachedLength;
+            writeMetadata();
+        }
+
+        /**
+         * @return a channel to read the cached data from, or null if the
+         * entry isn't complete
+         */
+        public synchronized FileChannel getChannel() {
+            if (!mComplete) return null;
+
+            try {
+                return getFile().getChannel();
+            } catch (IOException e) {
+                Log.e(TAG, "Couldn't open " + mDataFile);
+                return null;
+            }
+        }
+
+        private RandomAccessFile getFile() throws IOException {
+            if (mFile == null) {
+                mFile = new RandomAccessFile(mDataFile, "rw");
+            }
+            return mFile;
+        }
+
+        private synchronized void closeFile() {
+            if (mFile == null) return;
+
+            try {
+                mFile.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mFile = null;
+        }
+
+        private void writeMetadata() {
+            Properties props = new Properties();
+            props.setProperty("url", mUrl);
+            props.setProperty("length", String.valueOf(mLength));
+            props.setProperty("complete", String.valueOf(mComplete));
+            if (mETag != null) props.setProperty("etag", mETag);
+            if (mLastModified != null) props.setProperty("lastModified", mLastModified);
+
+            FileOutputStream out = null;
+            try {
+                out = new FileOutputStream(mMetaFile);
+                props.store(out, null);
+            } catch (IOException e) {
+                Log.e(TAG, "Couldn't write " + mMetaFile);
+            } finally {
+                closeQuietly(out);
+            }
+        }
+
+        private boolean readMetadata() {
+            Properties props = new Properties();
+
+            FileInputStream in = null;
+            try {
+                in = new FileInputStream(mMetaFile);
+                props.load(in);
+            } catch (IOException e) {
+                return false;
+            } finally {
+                closeQuietly(in);
+            }
+
+            if (!mUrl.equals(props.getProperty("url"))) return false;
+
+            try {
+                mLength = Long.parseLong(props.getProperty("length", "-1"));
+            } catch (NumberFormatException e) {
+                return false;
+            }
+
+            mETag = props.getProperty("etag");
+            mLastModified = props.getProperty("lastModified");
+            mComplete = Boolean.parseBoolean(props.getProperty("complete"));
+            mCachedLength = mDataFile.length();
+
+            // the data file must agree with the metadata
+            if (mComplete && mCachedLength != mLength) {
+                mComplete = false;
+            }
+            return true;
+        }
+
+        private void delete() {
+            closeFile();
+            mDataFile.delete();
+            mMetaFile.delete();
+        }
+    }
+
+    /**
+     * @param directory the directory the entries are stored in, which
+     * shouldn't be shared with anything else
+     * @param maxSize the maximum total size of the cached data in bytes
+     */
+    public DiskCache(File directory, long maxSize) {
+        mDirectory = directory;
+        mMaxSize = maxSize;
+        mEntries = new LinkedHashMap<>(16, 0.75f, true);
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(TAG, "Couldn't create cache directory " + directory);
+        }
+
+        loadEntries();
+    }
+
+    public long getMaxSize() {
+        return mMaxSize;
+    }
+
+    public synchronized long getSize() {
+        return mSize;
+    }
+
+    /**
+     * Get the entry for the given url, creating an empty one if the url
+     * isn't cached. The entry must be passed to {@link #close(Entry)} when
+     * it's no longer used.
+     */
+    public synchronized Entry open(String url) {
+        String key = getKey(url);
+
+        Entry entry = mEntries.get(key);
+        if (entry == null || !entry.getUrl().equals(url)) {
+            if (entry != null) {
+                remove(entry);
+            }
+
+            entry = new Entry(key, url);
+            mEntries.put(key, entry);
+        }
+
+        entry.mOpenCount++;
+        entry.mDataFile.setLastModified(System.currentTimeMillis());
+        return entry;
+    }
+
+    public synchronized void close(Entry entry) {
+        if (--entry.mOpenCount == 0) {
+            entry.closeFile();
+        }
+
+        trimToSize();
+    }
+
+    /**
+     * Remove the cached data for the given url, unless it's in use.
+     */
+    public synchronized void remove(String url) {
+        Entry entry = mEntries.get(getKey(url));
+        if (entry != null && entry.mOpenCount == 0) {
+            remove(entry);
+        }
+    }
+
+    private void remove(Entry entry) {
+        mEntries.remove(entry.mKey);
+        mSize -= entry.getCachedLength();
+        entry.delete();
+    }
+
+    private synchronized void addSize(long delta) {
+        mSize += delta;
+        if (delta > 0 && mSize > mMaxSize) {
+            trimToSize();
+        }
+    }
+
+    private void trimToSize() {
+        Iterator<Entry> it = mEntries.values().iterator();
+        while (mSize > mMaxSize && it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.mOpenCount > 0) continue;
+
+            it.remove();
+            mSize -= entry.getCachedLength();
+            entry.delete();
+        }
+    }
+
+    /**
+     * Rebuild the index from the cache directory, ordering entries by the
+     * last time they were opened.
+     */
+    private void loadEntries() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) return;
+
+        List<Entry> entries = new ArrayList<>();
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(META_SUFFIX)) continue;
+
+            String key = name.substring(0, name.length() - META_SUFFIX.length());
+            Properties props = new Properties();
+
+            FileInputStream in = null;
+            try {
+                in = new FileInputStream(file);
+                props.load(in);
+            } catch (IOException e) {
+                continue;
+            } finally {
+                closeQuietly(in);
+            }
+
+            String url = props.getProperty("url");
+            if (url == null) continue;
+
+            Entry entry = new Entry(key, url);
+            if (entry.readMetadata()) {
+                entries.add(entry);
+            } else {
+                entry.delete();
+            }
+        }
+
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry lhs, Entry rhs) {
+                long l = lhs.mDataFile.lastModified();
+                long r = rhs.mDataFile.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+
+        for (Entry entry : entries) {
+            mEntries.put(entry.mKey, entry);
+            mSize += entry.getCachedLength();
+        }
+
+        trimToSize();
+    }
+
+    private static String getKey(String url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] hash = digest.digest(url.getBytes("UTF-8"));
+
+            StringBuilder sb = new StringBuilder();
+            for (byte b : hash) {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(url.hashCode());
+        } catch (IOException e) {
+            return Integer.toHexString(url.hashCode());
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
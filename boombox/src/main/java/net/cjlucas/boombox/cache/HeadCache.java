@@ -0,0 +1,114 @@
+package net.cjlucas.boombox.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A memory capped, least recently used cache of the first bytes of tracks,
+ * so playback can start while the track's provider is still being prepared.
+ */
+public class HeadCache<K> {
+    private final int mHeadSize;
+    private final LinkedHashMap<K, Head> mHeads;
+    private long mMaxSize;
+    private long mSize;
+
+    public static class Head {
+        private final byte[] mData;
+        private final long mLength;
+        private final boolean mSeekable;
+        private final boolean mComplete;
+
+        /**
+         * @param data the first bytes of the track
+         * @param length the full length of the track, or 0 if it's unknown
+         * @param seekable whether the track's provider is seekable
+         * @param complete whether data is the entire track
+         */
+        public Head(byte[] data, long length, boolean seekable, boolean complete) {
+            mData = data;
+            mLength = length;
+            mSeekable = seekable;
+            mComplete = complete;
+        }
+
+        public byte[] getData() {
+            return mData;
+        }
+
+        public long getLength() {
+            return mLength;
+        }
+
+        public boolean isSeekable() {
+            return mSeekable;
+        }
+
+        public boolean isComplete() {
+            return mComplete;
+        }
+    }
+
+    /**
+     * @param headSize the number of bytes kept of every track
+     * @param maxSize the maximum total size of the cached heads in bytes
+     */
+    public HeadCache(int headSize, long maxSize) {
+        mHeadSize = headSize;
+        mMaxSize = maxSize;
+        mHeads = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    public int getHeadSize() {
+        return mHeadSize;
+    }
+
+    public synchronized long getSize() {
+        return mSize;
+    }
+
+    public synchronized long getMaxSize() {
+        return mMaxSize;
+    }
+
+    public synchronized void setMaxSize(long maxSize) {
+        mMaxSize = maxSize;
+        trimToSize();
+    }
+
+    public synchronized boolean contains(K key) {
+        return mHeads.containsKey(key);
+    }
+
+    /**
+     * @return the cached head, or null if there is none
+     */
+    public synchronized Head get(K key) {
+        return mHeads.get(key);
+    }
+
+    public synchronized void put(K key, Head head) {
+        Head old = mHeads.put(key, head);
+        if (old != null) {
+            mSize -= old.mData.length;
+        }
+
+        mSize += head.mData.length;
+        trimToSize();
+    }
+
+    public synchronized void remove(K key) {
+        Head head = mHeads.remove(key);
+        if (head != null) {
+            mSize -= head.mData.length;
+        }
+    }
+
+    private void trimToSize() {
+        Iterator<Head> it = mHeads.values().iterator();
+        while (mSize > mMaxSize && it.hasNext()) {
+            mSize -= it.next().mData.length;
+            it.remove();
+        }
+    }
+}
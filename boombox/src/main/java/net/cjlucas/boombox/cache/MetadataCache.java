@@ -0,0 +1,243 @@
+package net.cjlucas.boombox.cache;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A persistent cache of track metadata, like the duration, that is
+ * expensive to get because it requires parsing the container.
+ *
+ * Keys identify a version of a track: local files are keyed by their path,
+ * size and modification time. Probes run on a background thread, and failed
+ * probes are remembered so they aren't retried for the same version of a
+ * track.
+ */
+public class MetadataCache {
+    private static final String TAG = "MetadataCache";
+    private static final String SEPARATOR = "\t";
+
+    private final File mFile;
+    private final Map<String, Metadata> mEntries;
+    private final Set<String> mProbing;
+    private final ExecutorService mExecutor;
+    private boolean mSaveScheduled;
+
+    public static class Metadata {
+        private final long mDuration;
+        private final long mLength;
+        private final String mMimeType;
+        private final boolean mFailed;
+
+        /**
+         * @param duration the duration in milliseconds, or 0 if unknown
+         * @param length the length in bytes, or 0 if unknown
+         * @param mimeType the format of the track, or null if unknown
+         */
+        public Metadata(long duration, long length, String mimeType) {
+            this(duration, length, mimeType, false);
+        }
+
+        private Metadata(long duration, long length, String mimeType, boolean failed) {
+            mDuration = duration;
+            mLength = length;
+            mMimeType = mimeType;
+            mFailed = failed;
+        }
+
+        /**
+         * @return metadata recording that a track couldn't be probed
+         */
+        public static Metadata failed(long length) {
+            return new Metadata(0, length, null, true);
+        }
+
+        public long getDuration() {
+            return mDuration;
+        }
+
+        public long getLength() {
+            return mLength;
+        }
+
+        public String getMimeType() {
+            return mMimeType;
+        }
+
+        /**
+         * Whether probing the track failed.
+         */
+        public boolean isFailed() {
+            return mFailed;
+        }
+    }
+
+    /**
+     * Probes a track for its metadata. Called on the cache's background thread.
+     */
+    public interface Prober {
+        /**
+         * @return the metadata, or {@link Metadata#failed(long)} if the
+         * track couldn't be probed
+         */
+        Metadata probe();
+    }
+
+    /**
+     * @param file the file the cache is persisted to, or null to only keep
+     * the cache in memory
+     */
+    public MetadataCache(File file) {
+        mFile = file;
+        mEntries = new HashMap<>();
+        mProbing = new HashSet<>();
+        mExecutor = Executors.newSingleThreadExecutor();
+
+        if (file != null) {
+            load();
+        }
+    }
+
+    public static String getKey(File file) {
+        return "file" + SEPARATOR + file.getAbsolutePath() + SEPARATOR + file.length()
+                + SEPARATOR + file.lastModified();
+    }
+
+    /**
+     * @return the cached metadata, or null if the track hasn't been probed
+     */
+    public synchronized Metadata get(String key) {
+        return mEntries.get(key);
+    }
+
+    public synchronized void put(String key, Metadata metadata) {
+        mEntries.put(key, metadata);
+        scheduleSave();
+    }
+
+    /**
+     * Probe the track on the background thread, unless it's already cached
+     * or being probed.
+     */
+    public synchronized void probe(final String key, final Prober prober) {
+        if (mEntries.containsKey(key) || !mProbing.add(key)) return;
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Metadata metadata = prober.probe();
+
+                synchronized (MetadataCache.this) {
+                    mProbing.remove(key);
+                }
+                put(key, metadata);
+            }
+        });
+    }
+
+    /**
+     * Write the cache to disk on the background thread. Changes made in the
+     * meantime are written along with it.
+     */
+    private void scheduleSave() {
+        if (mFile == null || mSaveScheduled) return;
+
+        mSaveScheduled = true;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                save();
+            }
+        });
+    }
+
+    private void save() {
+        Map<String, Metadata> entries;
+        synchronized (this) {
+            mSaveScheduled = false;
+            entries = new HashMap<>(mEntries);
+        }
+
+        File tmp = new File(mFile.getPath() + ".tmp");
+        BufferedWriter writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+            for (Map.Entry<String, Metadata> entry : entries.entrySet()) {
+                Metadata metadata = entry.getValue();
+
+                writer.write(metadata.mFailed ? "failed" : "ok");
+                writer.write(SEPARATOR + metadata.mDuration);
+                writer.write(SEPARATOR + metadata.mLength);
+                writer.write(SEPARATOR + (metadata.mMimeType == null ? "" : metadata.mMimeType));
+                writer.write(SEPARATOR + entry.getKey());
+                writer.newLine();
+            }
+            writer.close();
+            writer = null;
+
+            if (!tmp.renameTo(mFile)) {
+                Log.e(TAG, "Couldn't replace " + mFile);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't write " + tmp);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void load() {
+        if (!mFile.exists()) return;
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(mFile), "UTF-8"));
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // the key goes last, since it contains separators itself
+                String[] fields = line.split(SEPARATOR, 5);
+                if (fields.length != 5) continue;
+
+                try {
+                    long duration = Long.parseLong(fields[1]);
+                    long length = Long.parseLong(fields[2]);
+                    String mimeType = fields[3].isEmpty() ? null : fields[3];
+                    boolean failed = "failed".equals(fields[0]);
+
+                    mEntries.put(fields[4], new Metadata(duration, length, mimeType, failed));
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "Skipping malformed entry");
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't read " + mFile);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -1,10 +1,14 @@
 package net.cjlucas.boombox.provider;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
 public abstract class AudioDataProvider {
     public static final int STATUS_EOF_REACHED = -1;
     public static final int STATUS_ERROR_OCCURED = -2;
 
     private Object id;
+    private byte[] mScratch;
 
     public AudioDataProvider(Object id) {
         this.id = id;
@@ -22,9 +26,120 @@ public abstract class AudioDataProvider {
         return 0;
     }
 
+    /**
+     * Whether {@link #seek(long)} is supported by this provider.
+     */
+    public boolean isSeekable() {
+        return false;
+    }
+
+    /**
+     * Reposition the provider so the next call to provideData returns data
+     * starting at the given byte offset. Only valid after prepare().
+     *
+     * @param offset the byte offset from the start of the audio data
+     * @return true if the provider was repositioned
+     */
+    public boolean seek(long offset) {
+        return false;
+    }
+
+    /**
+     * Release upstream resources, like network connections, while the
+     * consumer isn't reading. Only valid after prepare().
+     *
+     * @return true if the provider was suspended and needs {@link #resume(long)}
+     * before providing more data
+     */
+    public boolean suspend() {
+        return false;
+    }
+
+    /**
+     * Reacquire the resources released by {@link #suspend()}.
+     *
+     * @param offset the byte offset to continue providing data from
+     * @return true if the provider can provide data again
+     */
+    public boolean resume(long offset) {
+        return false;
+    }
+
+    /**
+     * Get a channel the audio data can be read from directly. When
+     * available, the data is transferred from the channel to the player
+     * without being copied through provideData. Only valid after prepare().
+     *
+     * @return the channel, or null if the provider isn't backed by a file
+     */
+    public FileChannel getFileChannel() {
+        return null;
+    }
+
+    /**
+     * Get the number of upstream connections the provider streams from.
+     * Only valid after prepare().
+     *
+     * @return 0 for providers backed by a file, 1 by default otherwise
+     */
+    public int getConnectionCount() {
+        return getFileChannel() == null ? 1 : 0;
+    }
+
+    /**
+     * Start warming up whatever {@link #prepare()} will need, like a
+     * connection to a remote host, without blocking. Called for the next
+     * provider in the playlist while the current one plays.
+     */
+    public void preconnect() {
+    }
+
+    /**
+     * Make a prepare() or read that is blocked on another thread, like on a
+     * network socket, fail right away. The provider must be released before
+     * it's prepared again, which also clears the abort.
+     */
+    public void abort() {
+    }
+
     public abstract boolean prepare();
 
     public abstract int provideData(byte[] buffer);
 
+    /**
+     * Read data into the remaining space of the given buffer, advancing its
+     * position by the number of bytes read.
+     *
+     * The default implementation adapts {@link #provideData(byte[])};
+     * providers should override this to read into the buffer directly.
+     *
+     * @return the number of bytes read, or one of the STATUS_ constants
+     */
+    public int provideData(ByteBuffer buffer) {
+        byte[] data;
+        boolean direct = buffer.hasArray() && buffer.arrayOffset() + buffer.position() == 0
+                && buffer.remaining() == buffer.array().length;
+
+        if (direct) {
+            data = buffer.array();
+        } else {
+            if (mScratch == null || mScratch.length != buffer.remaining()) {
+                mScratch = new byte[buffer.remaining()];
+            }
+            data = mScratch;
+        }
+
+        int size = provideData(data);
+        if (size <= 0) return size;
+
+        if (direct) {
+            buffer.position(buffer.position() + size);
+        } else {
+            buffer.put(data, 0, size);
+        }
+
+        return size;
+    }
+
     public abstract void release();
 }
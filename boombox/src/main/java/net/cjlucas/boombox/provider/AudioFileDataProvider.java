@@ -4,51 +4,117 @@ import android.media.MediaExtractor;
 import android.media.MediaFormat;
 import android.util.Log;
 
+import net.cjlucas.boombox.cache.MetadataCache;
+
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 public class AudioFileDataProvider extends AudioDataProvider {
     private static final String TAG = "AudioFileDataProvider";
 
+    // used when no cache is given, so probes still happen off the caller's thread
+    private static volatile MetadataCache sDefaultCache = new MetadataCache(null);
+
     private File mFile;
     private FileInputStream mInStream;
+    private MetadataCache mMetadataCache;
+    private String mMetadataKey;
     private long mDuration;
 
-    public AudioFileDataProvider(File file, Object id) {
+    /**
+     * @param metadataCache the cache the file's duration is looked up in and
+     * probed into, or null for the default cache
+     */
+    public AudioFileDataProvider(File file, Object id, MetadataCache metadataCache) {
         super(id);
         mFile = file;
+        mMetadataCache = metadataCache;
+    }
+
+    public AudioFileDataProvider(File file, Object id) {
+        this(file, id, null);
     }
 
     public AudioFileDataProvider(File file) {
         this(file, file.getName());
     }
 
+    /**
+     * Set the cache used by providers created without one. By default that's
+     * a cache that is only kept in memory, so to keep probed durations across
+     * sessions, set a cache backed by a file in the app's cache directory.
+     */
+    public static void setDefaultMetadataCache(MetadataCache metadataCache) {
+        if (metadataCache == null) {
+            throw new IllegalArgumentException("metadataCache cannot be null");
+        }
+        sDefaultCache = metadataCache;
+    }
+
+    /**
+     * Get the duration from the metadata cache. If the file hasn't been
+     * probed yet, a probe is started in the background and 0 is returned.
+     */
     @Override
     public long getDuration() {
         if (mDuration == 0) {
-            MediaExtractor ext = new MediaExtractor();
-            try {
-                ext.setDataSource(mFile.getAbsolutePath());
-
-                MediaFormat mf = ext.getTrackFormat(0);
-                mDuration = mf.getLong(MediaFormat.KEY_DURATION) / 1000;
-            } catch (IOException e) {
-                Log.e(TAG, "Couldn't get duration");
+            MetadataCache cache = mMetadataCache != null ? mMetadataCache : sDefaultCache;
+
+            // the key stats the file, so it's only built once per provider
+            if (mMetadataKey == null) {
+                mMetadataKey = MetadataCache.getKey(mFile);
             }
+            MetadataCache.Metadata metadata = cache.get(mMetadataKey);
 
-            ext.release();
+            if (metadata != null) {
+                mDuration = metadata.getDuration();
+            } else {
+                cache.probe(mMetadataKey, new MetadataCache.Prober() {
+                    @Override
+                    public MetadataCache.Metadata probe() {
+                        return probeMetadata();
+                    }
+                });
+            }
         }
 
         return mDuration;
     }
 
+    private MetadataCache.Metadata probeMetadata() {
+        MediaExtractor ext = new MediaExtractor();
+        try {
+            ext.setDataSource(mFile.getAbsolutePath());
+
+            MediaFormat mf = ext.getTrackFormat(0);
+            return new MetadataCache.Metadata(mf.getLong(MediaFormat.KEY_DURATION) / 1000,
+                    mFile.length(), mf.getString(MediaFormat.KEY_MIME));
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't get duration");
+            return MetadataCache.Metadata.failed(mFile.length());
+        } catch (RuntimeException e) {
+            // thrown for files without any tracks or without a duration
+            Log.e(TAG, "Couldn't get duration");
+            return MetadataCache.Metadata.failed(mFile.length());
+        } finally {
+            ext.release();
+        }
+    }
+
     @Override
     public long getLength() {
         return mFile.length();
     }
 
+    @Override
+    public FileChannel getFileChannel() {
+        return mInStream == null ? null : mInStream.getChannel();
+    }
+
     public boolean prepare() {
         try {
             mInStream = new FileInputStream(mFile);
@@ -58,6 +124,22 @@ public class AudioFileDataProvider extends AudioDataProvider {
         }
     }
 
+    @Override
+    public boolean isSeekable() {
+        return true;
+    }
+
+    @Override
+    public boolean seek(long offset) {
+        try {
+            mInStream.getChannel().position(offset);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't seek to offset " + offset);
+            return false;
+        }
+    }
+
     public int provideData(byte[] buffer) {
         try {
             return mInStream.read(buffer);
@@ -66,6 +148,15 @@ public class AudioFileDataProvider extends AudioDataProvider {
         }
     }
 
+    @Override
+    public int provideData(ByteBuffer buffer) {
+        try {
+            return mInStream.getChannel().read(buffer);
+        } catch (IOException e) {
+            return STATUS_ERROR_OCCURED;
+        }
+    }
+
     public void release() {
         if (mInStream == null) {
             return;
@@ -0,0 +1,225 @@
+package net.cjlucas.boombox.provider;
+
+import android.util.Log;
+
+import net.cjlucas.boombox.cache.DiskCache;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A provider for remote content that reads through a {@link DiskCache}.
+ *
+ * Cached data is revalidated with a conditional request before it's used. A
+ * partially cached track is served from disk while the rest is requested
+ * from the server (with If-Range), and everything read from the server is
+ * appended to the cache entry. If the server can't be reached, a complete
+ * entry is served as is.
+ */
+public class CachingAudioDataProvider extends AudioDataProvider {
+    private static final String TAG = "CachingAudioDataProvider";
+
+    private final URL mUrl;
+    private final DiskCache mCache;
+    private final HttpAudioDataProvider mUpstream;
+
+    private DiskCache.Entry mEntry;
+    private long mLength;
+    private long mPosition;
+    // the offset the upstream is connected at, -1 if it isn't connected
+    private long mUpstreamPosition;
+
+    public CachingAudioDataProvider(URL url, DiskCache cache, Object id) {
+        super(id);
+        mUrl = url;
+        mCache = cache;
+        mUpstream = new HttpAudioDataProvider(url, id);
+        mUpstreamPosition = -1;
+    }
+
+    public CachingAudioDataProvider(URL url, DiskCache cache) {
+        this(url, cache, url.getFile());
+    }
+
+    @Override
+    public long getLength() {
+        return mLength;
+    }
+
+    @Override
+    public void preconnect() {
+        mUpstream.preconnect();
+    }
+
+    @Override
+    public void abort() {
+        mUpstream.abort();
+    }
+
+    @Override
+    public boolean prepare() {
+        mEntry = mCache.open(mUrl.toString());
+        mPosition = 0;
+        mUpstreamPosition = -1;
+
+        // cached data that can't be revalidated is replaced
+        long cachedLength = mEntry.getCachedLength();
+        boolean usable = cachedLength > 0 && mEntry.hasValidator();
+
+        long offset = usable && !mEntry.isComplete() ? cachedLength : 0;
+        int status = usable
+                ? mUpstream.prepare(offset, mEntry.getETag(), mEntry.getLastModified())
+                : mUpstream.prepare(0, null, null);
+
+        switch (status) {
+            case HttpURLConnection.HTTP_NOT_MODIFIED:
+                Log.i(TAG, "Serving " + mUrl + " from cache");
+                mLength = mEntry.getLength();
+                return true;
+            case HttpURLConnection.HTTP_PARTIAL:
+                Log.i(TAG, "Serving " + cachedLength + " bytes of " + mUrl + " from cache");
+                mEntry.update(mUpstream.getETag(), mUpstream.getLastModified(),
+                        mUpstream.getLength());
+                mLength = mUpstream.getLength();
+                mUpstreamPosition = offset;
+                return true;
+            case HttpURLConnection.HTTP_OK:
+                mEntry.reset(mUpstream.getETag(), mUpstream.getLastModified(),
+                        mUpstream.getLength());
+                mLength = mUpstream.getLength();
+                mUpstreamPosition = 0;
+                return true;
+            default:
+                // the server can't be reached, but a complete copy is all we need
+                if (mEntry.isComplete()) {
+                    Log.i(TAG, "Serving " + mUrl + " from cache without revalidating");
+                    mLength = mEntry.getLength();
+                    return true;
+                }
+
+                mCache.close(mEntry);
+                mEntry = null;
+                return false;
+        }
+    }
+
+    @Override
+    public boolean isSeekable() {
+        return mEntry != null && (mEntry.isComplete() || mUpstream.isSeekable());
+    }
+
+    @Override
+    public boolean seek(long offset) {
+        // the upstream is only repositioned once the cached data runs out
+        boolean cached = offset < mEntry.getCachedLength() || mEntry.isComplete();
+        if (!cached && !mUpstream.isSeekable()) return false;
+
+        mPosition = offset;
+        return true;
+    }
+
+    @Override
+    public boolean suspend() {
+        if (mUpstreamPosition != -1) {
+            if (!mUpstream.suspend()) return false;
+            mUpstreamPosition = -1;
+        }
+
+        return true;
+    }
+
+    @Override
+    public boolean resume(long offset) {
+        mPosition = offset;
+        return true;
+    }
+
+    /**
+     * Once a track is fully cached, the cache file can be sent to the player
+     * directly.
+     */
+    @Override
+    public FileChannel getFileChannel() {
+        return mEntry != null ? mEntry.getChannel() : null;
+    }
+
+    @Override
+    public int provideData(byte[] buffer) {
+        return read(buffer, 0, buffer.length);
+    }
+
+    @Override
+    public int provideData(ByteBuffer buffer) {
+        if (!buffer.hasArray()) {
+            return super.provideData(buffer);
+        }
+
+        int size = read(buffer.array(),
+                buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        if (size > 0) {
+            buffer.position(buffer.position() + size);
+        }
+        return size;
+    }
+
+    private int read(byte[] buffer, int offset, int length) {
+        try {
+            int size = mEntry.read(mPosition, buffer, offset, length);
+            if (size > 0) {
+                mPosition += size;
+                return size;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't read cached data, continuing from upstream");
+        }
+
+        if (mEntry.isComplete()) {
+            return STATUS_EOF_REACHED;
+        }
+
+        if (mUpstreamPosition != mPosition && !connectUpstream()) {
+            return STATUS_ERROR_OCCURED;
+        }
+
+        int size = mUpstream.provideData(ByteBuffer.wrap(buffer, offset, length));
+        if (size > 0) {
+            mEntry.append(mPosition, buffer, offset, size);
+            mPosition += size;
+            mUpstreamPosition = mPosition;
+        } else if (size == STATUS_EOF_REACHED && mPosition == mEntry.getCachedLength()) {
+            mEntry.markComplete();
+        }
+
+        return size;
+    }
+
+    /**
+     * Connect the upstream at the current position, after a seek or once
+     * the cached data has been served.
+     */
+    private boolean connectUpstream() {
+        boolean connected;
+        if (mUpstreamPosition == -1) {
+            connected = mUpstream.resume(mPosition);
+        } else {
+            connected = mUpstream.seek(mPosition);
+        }
+
+        mUpstreamPosition = connected ? mPosition : -1;
+        return connected;
+    }
+
+    @Override
+    public void release() {
+        mUpstream.release();
+        mUpstreamPosition = -1;
+
+        if (mEntry != null) {
+            mCache.close(mEntry);
+            mEntry = null;
+        }
+    }
+}
@@ -1,19 +1,36 @@
 package net.cjlucas.boombox.provider;
 
+import android.util.Log;
+
 import java.io.BufferedInputStream;
 import java.io.IOException;
 
 import java.net.HttpURLConnection;
 import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
 public class HttpAudioDataProvider extends AudioDataProvider {
+    private static final String TAG = "HttpAudioDataProvider";
     private static final int TIMEOUT = 5000;
+    private static final int MAX_RESUME_ATTEMPTS = 3;
+    private static final int RESUME_BACKOFF = 500;
+
+    private static final ExecutorService sPreconnectExecutor =
+            Executors.newSingleThreadExecutor();
 
     private URL mUrl;
-    private HttpURLConnection mConn;
+    private volatile HttpURLConnection mConn;
+    private volatile boolean mAborted;
     private BufferedInputStream mInStream;
+    private long mLength;
+    private boolean mAcceptsRanges;
+    private long mPosition;
+    private String mETag;
+    private String mLastModified;
 
     public HttpAudioDataProvider(URL url, Object id) {
         super(id);
@@ -25,17 +42,147 @@ public class HttpAudioDataProvider extends AudioDataProvider {
     }
 
     public long getLength() {
-        return mConn.getContentLength();
+        return mLength;
+    }
+
+    /**
+     * Send a HEAD request on a background thread. HttpURLConnection keeps
+     * connections alive per host, so once the (bodiless) response is read
+     * the connection is pooled and prepare() can skip the DNS lookup and
+     * the TCP and TLS handshakes.
+     */
+    @Override
+    public void preconnect() {
+        sPreconnectExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    HttpURLConnection conn = (HttpURLConnection) mUrl.openConnection();
+                    conn.setConnectTimeout(TIMEOUT);
+                    conn.setReadTimeout(TIMEOUT);
+                    conn.setRequestMethod("HEAD");
+
+                    // closing the stream, not disconnecting, returns the connection to the pool
+                    conn.getResponseCode();
+                    conn.getInputStream().close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Couldn't preconnect to " + mUrl.getHost());
+                }
+            }
+        });
     }
 
     public boolean prepare() {
+        return prepare(0, null, null) == HttpURLConnection.HTTP_OK;
+    }
+
+    /**
+     * Disconnecting closes the socket, which unblocks a read stuck in it,
+     * unlike interrupting the reading thread.
+     */
+    @Override
+    public void abort() {
+        mAborted = true;
+
+        HttpURLConnection conn = mConn;
+        if (conn != null) {
+            conn.disconnect();
+        }
+    }
+
+    protected boolean isAborted() {
+        return mAborted;
+    }
+
+    /**
+     * Prepare against a cached copy of the content. With an offset of 0 the
+     * request is conditional on the copy being current, otherwise the rest
+     * of the content is requested starting at offset, as long as the copy
+     * is still current.
+     *
+     * @param offset the length of a partial copy, 0 for a complete one
+     * @param etag the ETag of the copy, or null
+     * @param lastModified the Last-Modified date of the copy, or null
+     * @return 304 if the complete copy is current, 206 if data continues at
+     * offset, 200 if data starts at 0 (the content changed), or -1 if the
+     * provider couldn't be prepared
+     */
+    public int prepare(long offset, String etag, String lastModified) {
+        mETag = etag;
+        mLastModified = lastModified;
+
+        int status;
         try {
-            mConn = (HttpURLConnection) mUrl.openConnection();
-            mConn.setConnectTimeout(TIMEOUT);
-            mConn.setReadTimeout(TIMEOUT);
+            status = connect(offset, true);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        }
 
-            mConn.connect();
-            mInStream = new BufferedInputStream(mConn.getInputStream());
+        if (status == HttpURLConnection.HTTP_NOT_MODIFIED && offset == 0) {
+            return status;
+        }
+
+        if (status == HttpURLConnection.HTTP_PARTIAL && offset > 0) {
+            mPosition = offset;
+            mLength = getContentRangeLength();
+            mAcceptsRanges = true;
+        } else if (status == HttpURLConnection.HTTP_OK) {
+            mPosition = 0;
+            mLength = mConn.getContentLength();
+            mAcceptsRanges = "bytes".equals(mConn.getHeaderField("Accept-Ranges"));
+            mETag = null;
+            mLastModified = null;
+        } else {
+            release();
+            return -1;
+        }
+
+        if (mConn.getHeaderField("ETag") != null) {
+            mETag = mConn.getHeaderField("ETag");
+        }
+        if (mConn.getHeaderField("Last-Modified") != null) {
+            mLastModified = mConn.getHeaderField("Last-Modified");
+        }
+
+        return status;
+    }
+
+    /**
+     * @return the total length from a 206 response's Content-Range header,
+     * or -1 if it's unknown
+     */
+    private long getContentRangeLength() {
+        String contentRange = mConn.getHeaderField("Content-Range");
+        if (contentRange == null) return -1;
+
+        try {
+            return Long.parseLong(contentRange.substring(contentRange.indexOf('/') + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public String getETag() {
+        return mETag;
+    }
+
+    public String getLastModified() {
+        return mLastModified;
+    }
+
+    /**
+     * Open a connection to the url, requesting data starting at the given offset.
+     *
+     * @param offset the byte offset to start at, 0 for the full content
+     * @return true if the server returned data starting at offset
+     */
+    private boolean openConnection(long offset) {
+        try {
+            if (connect(offset, false) != getExpectedStatus(offset)) {
+                release();
+                return false;
+            }
         } catch (SocketTimeoutException e) {
             e.printStackTrace();
             return false;
@@ -44,18 +191,172 @@ public class HttpAudioDataProvider extends AudioDataProvider {
             return false;
         }
 
+        mPosition = offset;
         return true;
     }
 
-    public int provideData(byte[] buffer) {
+    private static int getExpectedStatus(long offset) {
+        return offset > 0 ? HttpURLConnection.HTTP_PARTIAL : HttpURLConnection.HTTP_OK;
+    }
+
+    /**
+     * Send the request, opening the input stream if the response has a body.
+     * Range requests are made with If-Range, so a server only honors them
+     * if the content hasn't changed since it was prepared.
+     *
+     * @param conditional whether a request for the full content should be
+     * conditional on the known ETag or Last-Modified date
+     * @return the response code
+     */
+    private int connect(long offset, boolean conditional) throws IOException {
+        mInStream = null;
+        mConn = (HttpURLConnection) mUrl.openConnection();
+        // checked after publishing the connection, so abort() either sees it or is seen here
+        if (mAborted) throw new IOException("aborted");
+
+        mConn.setConnectTimeout(TIMEOUT);
+        mConn.setReadTimeout(TIMEOUT);
+
+        if (offset > 0) {
+            mConn.setRequestProperty("Range", "bytes=" + offset + "-");
+
+            // If-Range only accepts strong ETags, fall back to the modification date
+            if (mETag != null && !mETag.startsWith("W/")) {
+                mConn.setRequestProperty("If-Range", mETag);
+            } else if (mLastModified != null) {
+                mConn.setRequestProperty("If-Range", mLastModified);
+            }
+        } else if (conditional && mETag != null) {
+            mConn.setRequestProperty("If-None-Match", mETag);
+        } else if (conditional && mLastModified != null) {
+            mConn.setRequestProperty("If-Modified-Since", mLastModified);
+        }
+
+        mConn.connect();
+
+        int status = mConn.getResponseCode();
+        if (status == HttpURLConnection.HTTP_OK || status == HttpURLConnection.HTTP_PARTIAL) {
+            mInStream = new BufferedInputStream(mConn.getInputStream());
+        } else {
+            mConn.disconnect();
+        }
+
+        return status;
+    }
+
+    /**
+     * Reconnect after the connection broke, picking up at the current
+     * position. Failing to connect still counts as an attempt, so the
+     * next read fails and retries again.
+     *
+     * @return false if resuming is pointless: the content changed or the
+     * thread was interrupted
+     */
+    private boolean reconnect(int attempt) {
         try {
-            return mInStream.read(buffer);
+            Thread.sleep(RESUME_BACKOFF * attempt);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        release();
+
+        try {
+            if (connect(mPosition, false) != getExpectedStatus(mPosition)) {
+                Log.e(TAG, "Content changed, can't resume " + mUrl);
+                release();
+                return false;
+            }
         } catch (IOException e) {
-            return STATUS_ERROR_OCCURED;
+            e.printStackTrace();
+            mInStream = null;
+        }
+
+        return true;
+    }
+
+    @Override
+    public boolean isSeekable() {
+        return mAcceptsRanges && mLength > 0;
+    }
+
+    @Override
+    public boolean seek(long offset) {
+        if (!isSeekable()) return false;
+
+        release();
+        return openConnection(offset);
+    }
+
+    @Override
+    public boolean suspend() {
+        // without range support there'd be no way to pick up where we left off
+        if (!isSeekable()) return false;
+
+        release();
+        return true;
+    }
+
+    @Override
+    public boolean resume(long offset) {
+        return openConnection(offset);
+    }
+
+    public int provideData(byte[] buffer) {
+        return read(buffer, 0, buffer.length);
+    }
+
+    @Override
+    public int provideData(ByteBuffer buffer) {
+        if (!buffer.hasArray()) {
+            return super.provideData(buffer);
+        }
+
+        int size = read(buffer.array(),
+                buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        if (size > 0) {
+            buffer.position(buffer.position() + size);
+        }
+        return size;
+    }
+
+    /**
+     * Read from the current connection. If the connection breaks, or ends
+     * before the full content length was received, reconnect at the current
+     * position with a Range request, up to MAX_RESUME_ATTEMPTS times in a row.
+     */
+    private int read(byte[] buffer, int offset, int length) {
+        int attempts = 0;
+
+        while (true) {
+            if (mInStream != null) {
+                try {
+                    int size = mInStream.read(buffer, offset, length);
+                    if (size >= 0) {
+                        mPosition += size;
+                        return size;
+                    }
+
+                    if (mLength <= 0 || mPosition >= mLength) {
+                        return size;
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            if (!isSeekable() || ++attempts > MAX_RESUME_ATTEMPTS || !reconnect(attempts)) {
+                return STATUS_ERROR_OCCURED;
+            }
+
+            Log.i(TAG, "Resumed " + mUrl + " at " + mPosition);
         }
     }
 
     public void release() {
+        mAborted = false;
+
         if (mInStream != null) {
             try {
                 mInStream.close();
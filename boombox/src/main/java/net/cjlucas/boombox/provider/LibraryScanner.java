@@ -0,0 +1,268 @@
+package net.cjlucas.boombox.provider;
+
+import android.util.Log;
+
+import net.cjlucas.boombox.cache.MetadataCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Walks a directory tree in parallel and builds an AudioFileDataProvider for
+ * every audio file found, handing them out in batches.
+ *
+ * Every directory is listed by its own task on a fixed thread pool. Files are
+ * ordered by name within a directory, but directories are reported in no
+ * particular order, and directories reached more than once, like through
+ * symbolic links, are only scanned once.
+ *
+ * Durations are not probed by the scan itself: for files missing from the
+ * {@link MetadataCache}, building the provider only queues a probe on the
+ * cache's background thread, one file at a time. Until it finishes, the
+ * provider's getDuration() returns 0.
+ */
+public class LibraryScanner {
+    private static final String TAG = "LibraryScanner";
+
+    public static final int DEFAULT_BATCH_SIZE = 250;
+
+    private static final Set<String> AUDIO_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "3gp", "aac", "amr", "flac", "m4a", "mka", "mp3", "oga", "ogg", "opus", "wav"));
+
+    private final int mParallelism;
+    private final MetadataCache mMetadataCache;
+    private int mBatchSize;
+
+    private ExecutorService mExecutor;
+    private Listener mListener;
+    private AtomicInteger mPendingDirectories;
+    private List<AudioDataProvider> mBatch;
+    private Set<String> mVisited;
+    private int mProviderCount;
+    private volatile boolean mCanceled;
+
+    // held while calling the listener, so calls don't overlap
+    private final Object mListenerLock = new Object();
+
+    public interface Listener {
+        /**
+         * Called on a scanner thread for every batch of providers found.
+         * Calls never overlap, and the scanner isn't locked during them.
+         */
+        void onProvidersFound(LibraryScanner scanner, List<AudioDataProvider> providers);
+
+        /**
+         * Called on a scanner thread once the whole tree has been scanned,
+         * unless the scan was canceled.
+         */
+        void onScanComplete(LibraryScanner scanner, int providerCount);
+    }
+
+    /**
+     * @param parallelism the number of directories listed at once
+     * @param metadataCache the cache the providers look up their metadata in,
+     * or null for the providers' default
+     */
+    public LibraryScanner(int parallelism, MetadataCache metadataCache) {
+        mParallelism = parallelism;
+        mMetadataCache = metadataCache;
+        mBatchSize = DEFAULT_BATCH_SIZE;
+    }
+
+    public LibraryScanner(MetadataCache metadataCache) {
+        this(Math.max(2, Runtime.getRuntime().availableProcessors()), metadataCache);
+    }
+
+    public synchronized void setBatchSize(int batchSize) {
+        mBatchSize = batchSize;
+    }
+
+    public synchronized boolean isScanning() {
+        return mExecutor != null;
+    }
+
+    /**
+     * Start scanning the given directory tree in the background.
+     *
+     * @throws IllegalStateException if a scan is already running
+     */
+    public synchronized void scan(File root, Listener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("listener cannot be null");
+        }
+        if (mExecutor != null) {
+            throw new IllegalStateException("a scan is already running");
+        }
+
+        mExecutor = Executors.newFixedThreadPool(mParallelism);
+        mListener = listener;
+        mPendingDirectories = new AtomicInteger(1);
+        mBatch = new ArrayList<>();
+        mVisited = new HashSet<>();
+        mProviderCount = 0;
+        mCanceled = false;
+
+        submit(root);
+    }
+
+    /**
+     * Stop the running scan. Batches already delivered are kept by the
+     * listener, no further callbacks are made.
+     */
+    public synchronized void cancel() {
+        if (mExecutor == null) return;
+
+        mCanceled = true;
+        mExecutor.shutdownNow();
+        mExecutor = null;
+    }
+
+    private void submit(final File directory) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    scanDirectory(directory);
+                } finally {
+                    if (mPendingDirectories.decrementAndGet() == 0) {
+                        finish();
+                    }
+                }
+            }
+        });
+    }
+
+    private void scanDirectory(File directory) {
+        if (mCanceled || !visit(directory)) return;
+
+        File[] files = directory.listFiles();
+        if (files == null) {
+            Log.w(TAG, "Couldn't list " + directory);
+            return;
+        }
+        Arrays.sort(files);
+
+        List<AudioDataProvider> providers = new ArrayList<>();
+        for (File file : files) {
+            if (file.isDirectory()) {
+                synchronized (this) {
+                    if (mCanceled) return;
+
+                    mPendingDirectories.incrementAndGet();
+                    submit(file);
+                }
+            } else if (isAudioFile(file)) {
+                AudioFileDataProvider provider =
+                        new AudioFileDataProvider(file, file.getName(), mMetadataCache);
+
+                // only queues a probe if the metadata isn't cached yet
+                provider.getDuration();
+                providers.add(provider);
+            }
+        }
+
+        if (!providers.isEmpty()) {
+            addToBatch(providers);
+        }
+    }
+
+    /**
+     * @return false if the directory was already scanned under another path
+     */
+    private boolean visit(File directory) {
+        String path;
+        try {
+            path = directory.getCanonicalPath();
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't resolve " + directory);
+            return false;
+        }
+
+        synchronized (this) {
+            return mVisited.add(path);
+        }
+    }
+
+    private static boolean isAudioFile(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+
+        return dot != -1 && AUDIO_EXTENSIONS.contains(
+                name.substring(dot + 1).toLowerCase(Locale.US));
+    }
+
+    private void addToBatch(List<AudioDataProvider> providers) {
+        Listener listener;
+        List<AudioDataProvider> batch = null;
+
+        synchronized (this) {
+            if (mCanceled) return;
+
+            mBatch.addAll(providers);
+            mProviderCount += providers.size();
+
+            listener = mListener;
+            if (mBatch.size() >= mBatchSize) {
+                batch = takeBatch();
+            }
+        }
+
+        deliverBatch(listener, batch);
+    }
+
+    private List<AudioDataProvider> takeBatch() {
+        if (mBatch.isEmpty()) return null;
+
+        List<AudioDataProvider> batch = mBatch;
+        mBatch = new ArrayList<>();
+        return batch;
+    }
+
+    private void deliverBatch(Listener listener, List<AudioDataProvider> batch) {
+        if (batch == null) return;
+
+        synchronized (mListenerLock) {
+            if (mCanceled) return;
+
+            listener.onProvidersFound(this, batch);
+        }
+    }
+
+    private void finish() {
+        Listener listener;
+        List<AudioDataProvider> batch;
+        int providerCount;
+
+        synchronized (this) {
+            if (mCanceled) return;
+
+            listener = mListener;
+            batch = takeBatch();
+            providerCount = mProviderCount;
+        }
+
+        deliverBatch(listener, batch);
+        synchronized (mListenerLock) {
+            if (mCanceled) return;
+
+            listener.onScanComplete(this, providerCount);
+        }
+
+        // the scan counts as running until the listener has been told
+        synchronized (this) {
+            if (mCanceled) return;
+
+            mExecutor.shutdown();
+            mExecutor = null;
+        }
+    }
+}
@@ -0,0 +1,620 @@
+package net.cjlucas.boombox.provider;
+
+import android.util.Log;
+
+import net.cjlucas.boombox.BufferPool;
+import net.cjlucas.boombox.cache.DiskCache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * An HttpAudioDataProvider that downloads segments of the content over
+ * several connections at once, which gets closer to the link's capacity
+ * than a single connection on high latency links.
+ *
+ * Segments are fetched with Range requests and handed out in order. Servers
+ * without range support, and content that fits in a single segment, are
+ * read sequentially.
+ *
+ * By default only a window ahead of the read position is downloaded, and
+ * kept in memory in buffers reused from a pool. Given a {@link DiskCache},
+ * the provider buffers the whole track instead: segments keep being fetched
+ * regardless of the read position, and are written to the cache entry as
+ * soon as they directly follow the data already there, so at most a window
+ * of segments is held in memory. A track that is complete in the cache is
+ * served from disk, also when the server can't be reached.
+ */
+public class SegmentedHttpAudioDataProvider extends HttpAudioDataProvider {
+    private static final String TAG = "SegmentedHttpAudioDataProvider";
+    private static final int TIMEOUT = 5000;
+    private static final int MAX_SEGMENT_ATTEMPTS = 3;
+
+    public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    private final URL mUrl;
+    private final int mSegmentSize;
+    private final int mParallelism;
+    private final BufferPool mPool;
+    // null unless the whole track is buffered
+    private final DiskCache mCache;
+
+    private boolean mSegmented;
+    // whether the track is served from a complete cache entry
+    private boolean mFromCache;
+    private long mLength;
+    private boolean mAcceptsRanges;
+    private String mETag;
+    private String mLastModified;
+    private String mValidator;
+    private ExecutorService mExecutor;
+    private volatile HttpURLConnection mProbeConn;
+
+    // held while writing segments to the cache entry
+    private final Object mSpillLock = new Object();
+
+    // guarded by this
+    private final Map<Integer, ByteBuffer> mSegments;
+    private final Map<Integer, Future<?>> mTasks;
+    private DiskCache.Entry mEntry;
+    private long mPosition;
+    private int mNextSegment;
+    // the segments written to the cache entry, from the first one on
+    private int mSpilledSegments;
+    private int mGeneration;
+    private boolean mFailed;
+
+    /**
+     * @param segmentSize the size of each Range request in bytes
+     * @param parallelism the number of segments downloaded at once
+     * @param cache the cache the whole track is downloaded into, or null to
+     * only download a window ahead of the read position
+     */
+    public SegmentedHttpAudioDataProvider(URL url, Object id, int segmentSize, int parallelism,
+                                          DiskCache cache) {
+        super(url, id);
+        mUrl = url;
+        mSegmentSize = segmentSize;
+        mParallelism = parallelism;
+        mCache = cache;
+        mPool = new BufferPool(segmentSize, parallelism * 2);
+        mSegments = new HashMap<>();
+        mTasks = new HashMap<>();
+    }
+
+    public SegmentedHttpAudioDataProvider(URL url, Object id, int segmentSize, int parallelism) {
+        this(url, id, segmentSize, parallelism, null);
+    }
+
+    public SegmentedHttpAudioDataProvider(URL url, Object id) {
+        this(url, id, DEFAULT_SEGMENT_SIZE, DEFAULT_PARALLELISM);
+    }
+
+    public SegmentedHttpAudioDataProvider(URL url) {
+        this(url, url.getFile());
+    }
+
+    @Override
+    public long getLength() {
+        return mSegmented ? mLength : super.getLength();
+    }
+
+    @Override
+    public boolean prepare() {
+        boolean reachable = probe();
+        mFromCache = false;
+        mSegmented = reachable && mAcceptsRanges && mLength > mSegmentSize;
+
+        DiskCache.Entry entry = mCache == null ? null : openEntry(reachable);
+        if (entry != null && entry.isComplete()) {
+            Log.i(TAG, "Serving " + mUrl + " from cache");
+            mLength = entry.getLength();
+            mSegmented = true;
+            mFromCache = true;
+        } else if (!mSegmented && entry != null) {
+            // without ranges there's no way to continue a partial entry
+            mCache.close(entry);
+            entry = null;
+        }
+
+        if (!mSegmented) {
+            return super.prepare();
+        }
+
+        int cachedSegments = entry == null ? 0 : (int) (entry.getCachedLength() / mSegmentSize);
+        synchronized (this) {
+            resetSegments();
+            mEntry = entry;
+            mPosition = 0;
+            mNextSegment = cachedSegments;
+            mSpilledSegments = cachedSegments;
+        }
+
+        if (!mFromCache) {
+            mExecutor = Executors.newFixedThreadPool(mParallelism);
+            scheduleSegments();
+        }
+        return true;
+    }
+
+    /**
+     * Find out whether the content can be downloaded in segments.
+     *
+     * @return false if the server couldn't be reached
+     */
+    private boolean probe() {
+        try {
+            HttpURLConnection conn = (HttpURLConnection) mUrl.openConnection();
+            mProbeConn = conn;
+            if (isAborted()) return false;
+
+            conn.setConnectTimeout(TIMEOUT);
+            conn.setReadTimeout(TIMEOUT);
+            conn.setRequestMethod("HEAD");
+
+            if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                conn.disconnect();
+                return false;
+            }
+
+            mLength = conn.getContentLength();
+            mAcceptsRanges = "bytes".equals(conn.getHeaderField("Accept-Ranges"));
+            mETag = conn.getHeaderField("ETag");
+            mLastModified = conn.getHeaderField("Last-Modified");
+
+            // If-Range only accepts strong ETags, fall back to the modification date
+            mValidator = mETag != null && !mETag.startsWith("W/") ? mETag : mLastModified;
+
+            conn.getInputStream().close();
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            mProbeConn = null;
+        }
+    }
+
+    /**
+     * Open the cache entry of the track, clearing it if the track changed
+     * since it was cached.
+     *
+     * @return the entry, or null if it can't be used
+     */
+    private DiskCache.Entry openEntry(boolean reachable) {
+        DiskCache.Entry entry = mCache.open(mUrl.toString());
+
+        // a complete copy is all we need when offline
+        if (!reachable) {
+            if (entry.isComplete()) return entry;
+
+            mCache.close(entry);
+            return null;
+        }
+
+        boolean current = entry.hasValidator() && entry.getLength() == mLength
+                && equal(entry.getETag(), mETag) && equal(entry.getLastModified(), mLastModified);
+        if (!current) {
+            entry.reset(mETag, mLastModified, mLength);
+        }
+        return entry;
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private int getSegmentCount() {
+        return (int) ((mLength + mSegmentSize - 1) / mSegmentSize);
+    }
+
+    /**
+     * Start downloading the segments within the window, which follows the
+     * read position, or when buffering the whole track, the data written to
+     * the cache. The window is twice the parallelism, so the connections
+     * stay busy while the segments ahead of them are consumed.
+     */
+    private synchronized void scheduleSegments() {
+        if (mExecutor == null) return;
+
+        int start = mEntry != null ? mSpilledSegments : (int) (mPosition / mSegmentSize);
+        int window = start + mParallelism * 2;
+
+        while (mNextSegment < getSegmentCount() && mNextSegment < window) {
+            int index = mNextSegment++;
+            mTasks.put(index, mExecutor.submit(new SegmentTask(index, mGeneration)));
+        }
+    }
+
+    /**
+     * Drop the downloaded segments and cancel the downloads in progress, so
+     * the segments can be scheduled again from a new position. Segments
+     * already written to the cache are kept.
+     */
+    private synchronized void resetSegments() {
+        for (ByteBuffer segment : mSegments.values()) {
+            mPool.release(segment);
+        }
+        mSegments.clear();
+
+        for (Future<?> task : mTasks.values()) {
+            task.cancel(true);
+        }
+        mTasks.clear();
+
+        mFailed = false;
+        mGeneration++;
+    }
+
+    /**
+     * Write the downloaded segments that directly follow the cached data to
+     * the cache entry. A segment is taken out of memory while it's written,
+     * so readers wait until it can be read back from the cache.
+     */
+    private void spillSegments() {
+        synchronized (mSpillLock) {
+            while (true) {
+                DiskCache.Entry entry;
+                ByteBuffer segment;
+                int index;
+                int generation;
+
+                synchronized (this) {
+                    index = mSpilledSegments;
+                    segment = mEntry == null ? null : mSegments.remove(index);
+                    if (segment == null) break;
+
+                    entry = mEntry;
+                    generation = mGeneration;
+                }
+
+                // the entry may hold part of the segment already
+                long start = (long) index * mSegmentSize;
+                int skip = (int) Math.max(0, Math.min(segment.limit(), entry.getCachedLength() - start));
+                entry.append(start + skip, segment.array(), skip, segment.limit() - skip);
+                boolean written = entry.getCachedLength() >= start + segment.limit();
+
+                synchronized (this) {
+                    mPool.release(segment);
+                    if (generation != mGeneration) break;
+
+                    if (written) {
+                        mSpilledSegments++;
+                    } else {
+                        Log.e(TAG, "Couldn't cache segment " + index + " of " + mUrl);
+                        mFailed = true;
+                    }
+                    notifyAll();
+                    if (!written) break;
+                }
+            }
+        }
+
+        scheduleSegments();
+    }
+
+    /**
+     * Fail the probe and reads waiting for segments. Segment downloads stop
+     * once the provider is released.
+     */
+    @Override
+    public void abort() {
+        super.abort();
+
+        HttpURLConnection conn = mProbeConn;
+        if (conn != null) {
+            conn.disconnect();
+        }
+
+        synchronized (this) {
+            mFailed = true;
+            notifyAll();
+        }
+    }
+
+    @Override
+    public int getConnectionCount() {
+        if (mFromCache) return 0;
+
+        return mSegmented ? mParallelism : super.getConnectionCount();
+    }
+
+    /**
+     * A track served from a complete cache entry can be sent to the player
+     * directly.
+     */
+    @Override
+    public FileChannel getFileChannel() {
+        synchronized (this) {
+            if (mFromCache && mEntry != null) {
+                return mEntry.getChannel();
+            }
+        }
+
+        return super.getFileChannel();
+    }
+
+    @Override
+    public boolean isSeekable() {
+        return mSegmented || super.isSeekable();
+    }
+
+    @Override
+    public boolean seek(long offset) {
+        if (!mSegmented) {
+            return super.seek(offset);
+        }
+
+        if (offset < 0 || offset > mLength) return false;
+
+        synchronized (this) {
+            int index = (int) (offset / mSegmentSize);
+
+            if (mEntry != null) {
+                // the whole track is downloaded anyway, reads past the
+                // cached data wait for it, only failed segments are retried
+                if (mFailed) {
+                    resetSegments();
+                    mNextSegment = mSpilledSegments;
+                }
+            } else if (mFailed || index < (int) (mPosition / mSegmentSize) || index >= mNextSegment) {
+                // keep downloaded segments only if they're still usable,
+                // and retry failed ones from the new position
+                resetSegments();
+                mNextSegment = index;
+            } else {
+                for (int i = (int) (mPosition / mSegmentSize); i < index; i++) {
+                    mPool.release(mSegments.remove(i));
+                    Future<?> task = mTasks.remove(i);
+                    if (task != null) {
+                        task.cancel(true);
+                    }
+                }
+            }
+
+            mPosition = offset;
+        }
+
+        scheduleSegments();
+        return true;
+    }
+
+    @Override
+    public boolean suspend() {
+        return !mSegmented && super.suspend();
+    }
+
+    @Override
+    public int provideData(byte[] buffer) {
+        if (!mSegmented) {
+            return super.provideData(buffer);
+        }
+
+        return read(buffer, 0, buffer.length);
+    }
+
+    @Override
+    public int provideData(ByteBuffer buffer) {
+        if (!mSegmented) {
+            return super.provideData(buffer);
+        }
+
+        if (!buffer.hasArray()) {
+            return super.provideData(buffer);
+        }
+
+        int size = read(buffer.array(),
+                buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        if (size > 0) {
+            buffer.position(buffer.position() + size);
+        }
+        return size;
+    }
+
+    private int read(byte[] buffer, int offset, int length) {
+        int count;
+        boolean segmentDone;
+        DiskCache.Entry entry;
+        long position;
+
+        synchronized (this) {
+            if (mPosition >= mLength) return STATUS_EOF_REACHED;
+
+            int index = (int) (mPosition / mSegmentSize);
+            ByteBuffer segment;
+            while ((segment = mSegments.get(index)) == null) {
+                if (mEntry != null && mPosition < mEntry.getCachedLength()) break;
+                if (mFailed) return STATUS_ERROR_OCCURED;
+
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return STATUS_ERROR_OCCURED;
+                }
+            }
+
+            entry = mEntry;
+            position = mPosition;
+
+            if (segment != null) {
+                int segmentOffset = (int) (mPosition - (long) index * mSegmentSize);
+                count = Math.min(length, segment.limit() - segmentOffset);
+                System.arraycopy(segment.array(), segmentOffset, buffer, offset, count);
+                mPosition += count;
+
+                // when buffering the whole track, segments leave memory once cached
+                segmentDone = mEntry == null && segmentOffset + count == segment.limit();
+                if (segmentDone) {
+                    mPool.release(mSegments.remove(index));
+                }
+            } else {
+                count = -1;
+                segmentDone = false;
+            }
+        }
+
+        if (count == -1) {
+            // the data has been written to the cache already
+            try {
+                count = entry.read(position, buffer, offset, length);
+            } catch (IOException e) {
+                Log.e(TAG, "Couldn't read cached data of " + mUrl);
+                return STATUS_ERROR_OCCURED;
+            }
+
+            // the cached data only grows while the entry is open
+            if (count <= 0) return STATUS_ERROR_OCCURED;
+
+            synchronized (this) {
+                mPosition += count;
+            }
+        }
+
+        if (segmentDone) {
+            scheduleSegments();
+        }
+        return count;
+    }
+
+    /**
+     * @return a buffer from the pool holding the segment, or null if the
+     * content changed
+     */
+    private ByteBuffer fetchSegment(int index) throws IOException {
+        long start = (long) index * mSegmentSize;
+        int size = (int) Math.min(mSegmentSize, mLength - start);
+
+        HttpURLConnection conn = (HttpURLConnection) mUrl.openConnection();
+        conn.setConnectTimeout(TIMEOUT);
+        conn.setReadTimeout(TIMEOUT);
+        conn.setRequestProperty("Range", "bytes=" + start + "-" + (start + size - 1));
+        if (mValidator != null) {
+            conn.setRequestProperty("If-Range", mValidator);
+        }
+
+        // anything but a 206 means the content changed since it was probed
+        if (conn.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+            conn.disconnect();
+            return null;
+        }
+
+        ByteBuffer segment = mPool.acquire();
+        byte[] data = segment.array();
+        boolean complete = false;
+        InputStream in = conn.getInputStream();
+        try {
+            int total = 0;
+            while (total < size) {
+                int read = in.read(data, total, size - total);
+                if (read == -1) throw new IOException("segment " + index + " ended early");
+                total += read;
+            }
+            complete = true;
+        } finally {
+            in.close();
+            if (!complete) {
+                mPool.release(segment);
+            }
+        }
+
+        segment.limit(size);
+        return segment;
+    }
+
+    private class SegmentTask implements Runnable {
+        private final int mIndex;
+        private final int mTaskGeneration;
+
+        SegmentTask(int index, int generation) {
+            mIndex = index;
+            mTaskGeneration = generation;
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer data = null;
+
+            for (int attempt = 0; attempt < MAX_SEGMENT_ATTEMPTS; attempt++) {
+                synchronized (SegmentedHttpAudioDataProvider.this) {
+                    if (mTaskGeneration != mGeneration) return;
+                }
+
+                try {
+                    data = fetchSegment(mIndex);
+                    break;
+                } catch (IOException e) {
+                    Log.w(TAG, "Couldn't fetch segment " + mIndex + " of " + mUrl);
+                }
+            }
+
+            boolean spill;
+            synchronized (SegmentedHttpAudioDataProvider.this) {
+                // skipped over by a seek while downloading
+                boolean skipped = mEntry == null && mIndex < mPosition / mSegmentSize;
+                if (mTaskGeneration != mGeneration || skipped) {
+                    mPool.release(data);
+                    return;
+                }
+
+                mTasks.remove(mIndex);
+                if (data != null) {
+                    mSegments.put(mIndex, data);
+                } else {
+                    mFailed = true;
+                }
+                SegmentedHttpAudioDataProvider.this.notifyAll();
+                spill = mEntry != null && data != null;
+            }
+
+            if (spill) {
+                spillSegments();
+            }
+        }
+    }
+
+    @Override
+    public void release() {
+        if (!mSegmented) {
+            super.release();
+            return;
+        }
+
+        synchronized (this) {
+            resetSegments();
+            mFailed = true;
+            notifyAll();
+
+            if (mExecutor != null) {
+                mExecutor.shutdownNow();
+                mExecutor = null;
+            }
+        }
+
+        // wait for a segment being written, then let the cache evict the entry
+        synchronized (mSpillLock) {
+            DiskCache.Entry entry;
+            synchronized (this) {
+                entry = mEntry;
+                mEntry = null;
+            }
+
+            if (entry != null) {
+                mCache.close(entry);
+            }
+        }
+
+        // clears an abort
+        super.release();
+    }
+}